@@ -0,0 +1,56 @@
+package com.github.t1.pdap;
+
+import com.sun.source.util.JavacTask;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Parses, enters, and attributes sources in memory, so the benchmarks can measure the processor's work
+ * on the same javac trees the annotation processor sees, without measuring javac itself.
+ */
+class AttributedTrees {
+    static AttributedTrees of(Map<String, String> sources) {
+        List<JavaFileObject> files = new ArrayList<>();
+        sources.forEach((path, source) -> files.add(new StringJavaFileObject(Paths.get(path), source)));
+        return new AttributedTrees(files);
+    }
+
+    private final JavacTask task;
+    private final List<TypeElement> types = new ArrayList<>();
+
+    private AttributedTrees(List<JavaFileObject> files) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        this.task = (JavacTask) compiler.getTask(null, null, null,
+            asList("-proc:none", "-source", "8", "-target", "8", "-classpath", System.getProperty("java.class.path")),
+            null, files);
+        try {
+            for (Element element : task.analyze())
+                if (element instanceof TypeElement)
+                    types.add((TypeElement) element);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    Elements elements() { return task.getElements(); }
+
+    Types typeUtils() { return task.getTypes(); }
+
+    List<TypeElement> types() { return types; }
+
+    TypeElement type(String qualifiedName) { return elements().getTypeElement(qualifiedName); }
+}
@@ -0,0 +1,85 @@
+package com.github.t1.pdap;
+
+import com.sun.tools.javac.model.JavacElements;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the rule resolution and edge classification in {@link Dependencies} for a chain of packages,
+ * where each package <code>p<i>i</i></code> allows dependencies on the next {@link #allowed} packages,
+ * uses all of them, and one more that's forbidden.
+ * As the {@link PackageRules} are cached for a compilation, every invocation uses new ones.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DependenciesBenchmark {
+    static Map<String, String> sources(int packages, int allowed) {
+        Map<String, String> sources = new LinkedHashMap<>();
+        for (int i = 0; i < packages; i++) {
+            StringBuilder dependencies = new StringBuilder();
+            for (int j = 1; j <= allowed && i + j < packages; j++)
+                dependencies.append((j == 1) ? "" : ", ").append("\"p").append(i + j).append("\"");
+            sources.put("p" + i + "/package-info.java", "" +
+                "@AllowDependenciesOn({" + dependencies + "})\n" +
+                "package p" + i + ";\n" +
+                "\n" +
+                "import com.github.t1.pdap.AllowDependenciesOn;\n");
+            sources.put("p" + i + "/C.java", "" +
+                "package p" + i + ";\n" +
+                "\n" +
+                "public class C {}\n");
+        }
+        return sources;
+    }
+
+    @Param({"100", "1000"})
+    public int packages;
+
+    @Param({"3"})
+    public int allowed;
+
+    private AttributedTrees trees;
+    private int location;
+
+    @Setup public void setup() {
+        trees = AttributedTrees.of(sources(packages, allowed));
+        location = new Locations().of((JavacElements) trees.elements(), trees.types().get(0));
+    }
+
+    @Benchmark public Dependencies scan() {
+        PackageTable table = new PackageTable();
+        Dependencies dependencies = new Dependencies(new PackageRules(trees.elements(), table, Stats.DISABLED));
+        for (int i = 0; i < packages; i++)
+            dependencies.scan(table.id("p" + i));
+        return dependencies;
+    }
+
+    @Benchmark public Dependencies scanAndUse() {
+        PackageTable table = new PackageTable();
+        Dependencies dependencies = new Dependencies(new PackageRules(trees.elements(), table, Stats.DISABLED));
+        for (int i = 0; i < packages; i++) {
+            int source = table.id("p" + i);
+            dependencies.scan(source);
+            for (int j = 1; j <= allowed + 1 && i + j < packages; j++)
+                dependencies.use(location, source, table.id("p" + (i + j)));
+        }
+        return dependencies;
+    }
+}
@@ -0,0 +1,152 @@
+package com.github.t1.pdap;
+
+import com.sun.tools.javac.code.Symbol.ClassSymbol;
+import com.sun.tools.javac.code.Symbol.MethodSymbol;
+import com.sun.tools.javac.model.JavacElements;
+import com.sun.tools.javac.tree.JCTree.JCCompilationUnit;
+import com.sun.tools.javac.tree.JCTree.JCFieldAccess;
+import com.sun.tools.javac.tree.JCTree.JCIdent;
+import com.sun.tools.javac.tree.JCTree.JCMethodInvocation;
+import com.sun.tools.javac.tree.TreeScanner;
+import com.sun.tools.javac.util.Name;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the {@link DependenciesCollector} per AST construct, and its name and method resolution helpers.
+ * Run, e.g., with <code>java -jar target/benchmarks.jar DependenciesCollector -prof gc</code>
+ * to also see the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DependenciesCollectorBenchmark {
+    /** The kinds of source code we want to know the cost of; each member is repeated {@link #count} times */
+    public enum Construct {
+        FIELDS("    private Target field%d;\n"),
+        METHOD_INVOCATIONS("    void method%d() { Target.create(); new Target().foo(\"x\"); }\n"),
+        NEW("    Object new%d = new Target();\n"),
+        GENERICS("    private Generic<? extends Target> generic%d;\n"
+            + "    private java.util.List<Target> list%d;\n");
+
+        private final String member;
+
+        Construct(String member) { this.member = member; }
+
+        String source(int count) {
+            StringBuilder out = new StringBuilder()
+                .append("package source;\n")
+                .append("\n")
+                .append("import target.Generic;\n")
+                .append("import target.Target;\n")
+                .append("\n")
+                .append("public class Source {\n");
+            for (int i = 0; i < count; i++)
+                out.append(member.replace("%d", Integer.toString(i)));
+            return out.append("}\n").toString();
+        }
+    }
+
+    static Map<String, String> sources(Construct construct, int count) {
+        Map<String, String> sources = new LinkedHashMap<>();
+        sources.put("source/package-info.java", "" +
+            "@AllowDependenciesOn(\"target\")\n" +
+            "package source;\n" +
+            "\n" +
+            "import com.github.t1.pdap.AllowDependenciesOn;\n");
+        sources.put("source/Source.java", construct.source(count));
+        sources.put("target/package-info.java", "" +
+            "@AllowDependenciesOn\n" +
+            "package target;\n" +
+            "\n" +
+            "import com.github.t1.pdap.AllowDependenciesOn;\n");
+        sources.put("target/Target.java", "" +
+            "package target;\n" +
+            "\n" +
+            "public class Target {\n" +
+            "    public static Target create() { return new Target(); }\n" +
+            "\n" +
+            "    public String foo(int i) { return null; }\n" +
+            "\n" +
+            "    public String foo(String s) { return null; }\n" +
+            "}\n");
+        sources.put("target/Generic.java", "" +
+            "package target;\n" +
+            "\n" +
+            "public class Generic<T> {}\n");
+        return sources;
+    }
+
+    @Param({"FIELDS", "METHOD_INVOCATIONS", "NEW", "GENERICS"})
+    public Construct construct;
+
+    @Param({"100"})
+    public int count;
+
+    private AttributedTrees trees;
+    private Symbols symbols;
+    private JCCompilationUnit source;
+    private DependenciesCollector collector;
+
+    private Name targetName;
+    private Name unresolvableName;
+
+    private ClassSymbol invocationTarget;
+    private JCMethodInvocation invocation;
+
+    @Setup public void setup() {
+        trees = AttributedTrees.of(sources(construct, count));
+        symbols = new Symbols(trees.elements(), trees.typeUtils(), Stats.DISABLED);
+        source = symbols.compilationUnit(trees.type("source.Source"));
+        collector = new DependenciesCollector(symbols, source);
+
+        JavacElements elements = (JavacElements) trees.elements();
+        targetName = elements.getName("Target");
+        unresolvableName = elements.getName("field0");
+
+        source.accept(new TreeScanner() {
+            @Override public void visitApply(JCMethodInvocation tree) {
+                if (invocation == null && tree.getMethodSelect() instanceof JCFieldAccess
+                    && ((JCFieldAccess) tree.getMethodSelect()).selected instanceof JCIdent) {
+                    invocation = tree;
+                    invocationTarget = collector.resolve(((JCIdent) ((JCFieldAccess) tree.getMethodSelect()).selected).name);
+                }
+                super.visitApply(tree);
+            }
+        });
+    }
+
+    @Benchmark public DependenciesCollector collect() {
+        return new DependenciesCollector(symbols, source);
+    }
+
+    @Benchmark public ClassSymbol resolveImported() {
+        return collector.resolve(targetName);
+    }
+
+    @Benchmark public ClassSymbol resolveUnresolvable() {
+        return collector.resolve(unresolvableName);
+    }
+
+    @Benchmark public MethodSymbol findMethod() {
+        if (invocation == null) // only the METHOD_INVOCATIONS source has one
+            return null;
+        return collector.findMethod(invocationTarget, ((JCFieldAccess) invocation.getMethodSelect()).name, invocation.getArguments());
+    }
+}
@@ -0,0 +1,104 @@
+package com.github.t1.pdap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Generates the sources of a project with {@link #packages} packages of {@link #classes} classes each,
+ * where each class references classes in the next {@link #references} packages,
+ * which are also the packages it's allowed to depend on.
+ * The references use fields, constructors, and static and instance method invocations,
+ * so all the paths of the {@link DependenciesCollector} are exercised.
+ * All packages are sub packages of <code>com.acme</code>, which allows dependencies on <code>java.util</code>.
+ */
+class SyntheticCodebase {
+    private static final String ROOT = "com.acme";
+
+    private final int packages;
+    private final int classes;
+    private final int references;
+
+    SyntheticCodebase(int packages, int classes, int references) {
+        this.packages = packages;
+        this.classes = classes;
+        this.references = references;
+    }
+
+    int packages() { return packages; }
+
+    int types() { return packages * classes; }
+
+    /** The sources mapped by their path */
+    Map<String, String> sources() {
+        Map<String, String> sources = new LinkedHashMap<>();
+        sources.put(path(ROOT) + "/package-info.java", packageInfo(ROOT, "\"java.util\""));
+        for (int p = 0; p < packages; p++) {
+            sources.put(path(packageName(p)) + "/package-info.java", packageInfo(packageName(p), allowed(p)));
+            for (int c = 0; c < classes; c++)
+                sources.put(path(packageName(p)) + "/" + className(p, c) + ".java", type(p, c));
+        }
+        return sources;
+    }
+
+    private String allowed(int p) {
+        StringBuilder out = new StringBuilder();
+        for (int target : targets(p))
+            out.append((out.length() == 0) ? "" : ", ").append('"').append(packageName(target)).append('"');
+        return out.toString();
+    }
+
+    private String packageInfo(String packageName, String allowed) {
+        return "" +
+            "@AllowDependenciesOn({" + allowed + "})\n" +
+            "package " + packageName + ";\n" +
+            "\n" +
+            "import com.github.t1.pdap.AllowDependenciesOn;\n";
+    }
+
+    private String type(int p, int c) {
+        StringBuilder imports = new StringBuilder("import java.util.List;\n");
+        StringBuilder members = new StringBuilder("" +
+            "    private List<String> names;\n" +
+            "\n" +
+            "    public " + className(p, c) + "() {}\n" +
+            "\n" +
+            "    public static " + className(p, c) + " create() { return new " + className(p, c) + "(); }\n" +
+            "\n" +
+            "    public String name(int i) { return this.names.get(i); }\n");
+        int r = 0;
+        for (int target : targets(p)) {
+            String targetClass = className(target, c);
+            imports.append("import ").append(packageName(target)).append('.').append(targetClass).append(";\n");
+            members.append("\n");
+            members.append("    private ").append(targetClass).append(" field").append(r).append(";\n");
+            members.append("\n");
+            members.append("    public void method").append(r).append("() {\n");
+            members.append("        ").append(targetClass).append(".create();\n");
+            members.append("        new ").append(targetClass).append("().name(").append(r).append(");\n");
+            members.append("    }\n");
+            r++;
+        }
+        return "" +
+            "package " + packageName(p) + ";\n" +
+            "\n" +
+            imports +
+            "\n" +
+            "public class " + className(p, c) + " {\n" +
+            members +
+            "}\n";
+    }
+
+    private int[] targets(int p) {
+        int count = Math.max(0, Math.min(references, packages - p - 1));
+        int[] targets = new int[count];
+        for (int i = 0; i < count; i++)
+            targets[i] = p + i + 1;
+        return targets;
+    }
+
+    private static String packageName(int p) { return ROOT + ".p" + p; }
+
+    private static String className(int p, int c) { return "C" + p + "x" + c; }
+
+    private static String path(String packageName) { return packageName.replace('.', '/'); }
+}
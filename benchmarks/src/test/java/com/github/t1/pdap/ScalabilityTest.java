@@ -0,0 +1,133 @@
+package com.github.t1.pdap;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.processing.Completion;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaCompiler.CompilationTask;
+import javax.tools.JavaFileObject;
+import javax.tools.ToolProvider;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static javax.tools.Diagnostic.Kind.ERROR;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compiles {@link SyntheticCodebase synthetic codebases} of two sizes with the processor,
+ * and fails if the time spent in the processor grows clearly faster than the size of the codebase.
+ * As it takes a while and depends on the machine, it only runs with the <code>scalability</code> profile.
+ * The sizes can be configured with the system properties <code>pdap.scalability.small</code>
+ * and <code>pdap.scalability.large</code> (number of packages), e.g. 1000 and 10000.
+ */
+@Tag("scalability")
+class ScalabilityTest {
+    private static final int SMALL = Integer.getInteger("pdap.scalability.small", 100);
+    private static final int LARGE = Integer.getInteger("pdap.scalability.large", 1000);
+    private static final int CLASSES = 2;
+    private static final int REFERENCES = 3;
+    private static final int RUNS = 3;
+
+    /** How much worse than linear we accept, to tolerate noise and JIT warm up */
+    private static final double TOLERANCE = 3.0;
+
+    private static class Measurement {
+        private final SyntheticCodebase codebase;
+        private final long processor;
+
+        private Measurement(SyntheticCodebase codebase, long processor) {
+            this.codebase = codebase;
+            this.processor = processor;
+        }
+
+        @Override public String toString() {
+            return codebase.packages() + " packages / " + codebase.types() + " types: processor " + processor / 1_000_000 + " ms";
+        }
+    }
+
+    /** Measures the time spent in the processor itself, without the time javac needs anyway */
+    private static class TimingProcessor implements Processor {
+        private final Processor processor = new PackageDependenciesAnnotationProcessor();
+        private long nanos = 0;
+
+        @Override public Set<String> getSupportedOptions() { return processor.getSupportedOptions(); }
+
+        @Override public Set<String> getSupportedAnnotationTypes() { return processor.getSupportedAnnotationTypes(); }
+
+        @Override public SourceVersion getSupportedSourceVersion() { return processor.getSupportedSourceVersion(); }
+
+        @Override public void init(ProcessingEnvironment processingEnv) {
+            long start = System.nanoTime();
+            processor.init(processingEnv);
+            nanos += System.nanoTime() - start;
+        }
+
+        @Override public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            long start = System.nanoTime();
+            try {
+                return processor.process(annotations, roundEnv);
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public Iterable<? extends Completion> getCompletions(Element element, AnnotationMirror annotation, ExecutableElement member, String userText) {
+            return processor.getCompletions(element, annotation, member, userText);
+        }
+    }
+
+    @Test void shouldScaleLinearly() {
+        measure(SMALL); // warm up
+
+        Measurement small = measure(SMALL);
+        Measurement large = measure(LARGE);
+
+        double sizeGrowth = (double) large.codebase.types() / small.codebase.types();
+        double processorGrowth = (double) large.processor / small.processor;
+        assertThat(processorGrowth)
+            .describedAs("growth of processor time from " + small + " to " + large + ", while the size grew by " + sizeGrowth)
+            .isLessThan(sizeGrowth * TOLERANCE);
+    }
+
+    private Measurement measure(int packages) {
+        SyntheticCodebase codebase = new SyntheticCodebase(packages, CLASSES, REFERENCES);
+        List<JavaFileObject> files = new ArrayList<>();
+        codebase.sources().forEach((path, source) -> files.add(new StringJavaFileObject(Paths.get(path), source)));
+        long processor = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++)
+            processor = Math.min(processor, compile(files));
+        return new Measurement(codebase, processor);
+    }
+
+    /** @return the nanoseconds spent in the processor */
+    private long compile(List<JavaFileObject> files) {
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        NoOutputFileManager fileManager = new NoOutputFileManager(compiler.getStandardFileManager(diagnostics, null, null));
+        CompilationTask task = compiler.getTask(null, fileManager, diagnostics,
+            asList("-source", "8", "-target", "8", "-classpath", System.getProperty("java.class.path")), null, files);
+        TimingProcessor processor = new TimingProcessor();
+        task.setProcessors(singletonList(processor));
+
+        Boolean success = task.call();
+
+        assertThat(diagnostics.getDiagnostics()).noneMatch(diagnostic -> diagnostic.getKind() == ERROR);
+        assertThat(success).isTrue();
+        return processor.nanos;
+    }
+}
@@ -5,6 +5,7 @@ import javax.annotation.processing.SupportedSourceVersion;
 import javax.lang.model.SourceVersion;
 import javax.lang.model.element.Element;
 import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
 import javax.tools.Diagnostic.Kind;
 import java.util.function.Supplier;
 
@@ -54,4 +55,8 @@ public abstract class AbstractAnnotationProcessor extends AbstractProcessor {
     protected Elements getElementUtils() {
         return processingEnv.getElementUtils();
     }
+
+    protected Types getTypeUtils() {
+        return processingEnv.getTypeUtils();
+    }
 }
@@ -0,0 +1,415 @@
+package com.github.t1.pdap;
+
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.code.Symbol.ClassSymbol;
+import com.sun.tools.javac.model.JavacElements;
+import com.sun.tools.javac.tree.JCTree.JCCompilationUnit;
+
+import javax.lang.model.element.Element;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.stream.Stream;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.Comparator.comparing;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * An opt-in directory where the dependencies collected from each compilation unit are stored,
+ * so builds of the same sources, e.g. clean CI builds or other checkouts of the same commit, can skip the tree walk.
+ * <p>
+ * What a {@link DependenciesCollector} finds depends not only on the compilation unit itself,
+ * but also on the types it resolves from the other sources and the class path,
+ * so the key of an entry is the hash of the source content plus a signature of the class path and all compiled sources.
+ * The class path signature only depends on the content of the classes, not on their paths or times, so other checkouts can share it:
+ * for jars it's the names and CRCs of the classes from the central directory, so we don't even have to inflate them.
+ * The class output is not part of it, as it's what we compile, and it would change the signature of the next compilation.
+ * The classes of pdap itself are part of it, so entries written by another version of the processor are never used.
+ * <p>
+ * The entries are written to a temporary file and then moved atomically, so concurrent builds on one machine
+ * only ever see complete entries. When the directory grows beyond the maximum size, the least recently used entries are evicted.
+ * <p>
+ * An entry stores the element of each dependency by the name of its type or member, not its source position,
+ * so a dependency found in a local variable or a local or anonymous class is reported at the enclosing member,
+ * while an uncached run reports it at the variable or class itself.
+ */
+class AnalysisCache {
+    static final String DIRECTORY_OPTION = "pdap.cacheDir";
+    static final String SIZE_OPTION = "pdap.cacheSize";
+    private static final long DEFAULT_MAX_MEGABYTES = 100;
+
+    private static final int MAGIC = 0x70646170; // "pdap"
+    /** The format of the entries; the processor version is part of the key */
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".pdap";
+
+    /** The cache configured by the processor options, or null if there is none */
+    static AnalysisCache of(Map<String, String> options, String classPath, Path classOutput) {
+        String directory = options.get(DIRECTORY_OPTION);
+        if (directory == null || directory.isEmpty())
+            return null;
+        String size = options.get(SIZE_OPTION);
+        long maxMegabytes = (size == null) ? DEFAULT_MAX_MEGABYTES : maxMegabytes(size);
+        return new AnalysisCache(Paths.get(directory), maxMegabytes * 1024 * 1024, classPath, classOutput);
+    }
+
+    private static long maxMegabytes(String size) {
+        try {
+            long maxMegabytes = Long.parseLong(size.trim());
+            if (maxMegabytes >= 0 && maxMegabytes <= Long.MAX_VALUE / 1024 / 1024)
+                return maxMegabytes;
+        } catch (NumberFormatException e) {
+            // report below
+        }
+        throw new IllegalArgumentException("invalid " + SIZE_OPTION + " [" + size + "]: expected the maximum number of megabytes");
+    }
+
+    private final Path directory;
+    private final long maxSize;
+    private final String classPathSignature;
+    /** The signature of the class path and all sources of the first round */
+    private String signature;
+    private final Map<JCCompilationUnit, String> contentHashes = new HashMap<>();
+
+    private AnalysisCache(Path directory, long maxSize, String classPath, Path classOutput) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.classPathSignature = classPathSignature(classPath, (classOutput == null) ? null : normalize(classOutput));
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("can't create cache directory " + directory, e);
+        }
+    }
+
+    private static Path normalize(Path path) { return path.toAbsolutePath().normalize(); }
+
+    /** The digest of the classes of pdap and in the class path entries, in their order, but without the class output */
+    private static String classPathSignature(String classPath, Path classOutput) {
+        MessageDigest digest = sha256();
+        update(digest, System.getProperty("java.version"));
+        updateProcessor(digest);
+        for (String entry : classPath.split(File.pathSeparator)) {
+            if (entry.isEmpty())
+                continue;
+            Path path = normalize(Paths.get(entry));
+            if (path.equals(classOutput))
+                continue;
+            update(digest, "\n");
+            try {
+                if (Files.isDirectory(path))
+                    updateDirectory(digest, path);
+                else if (Files.isRegularFile(path))
+                    updateArchive(digest, path);
+            } catch (IOException | UncheckedIOException e) {
+                update(digest, "unreadable " + path);
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    /** The classes of pdap itself, from the jar or directory we are loaded from */
+    private static void updateProcessor(MessageDigest digest) {
+        update(digest, "\n");
+        try {
+            Path path = Paths.get(AnalysisCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            if (Files.isDirectory(path))
+                updateDirectory(digest, path);
+            else
+                updateArchive(digest, path);
+        } catch (IOException | RuntimeException | URISyntaxException e) {
+            update(digest, UUID.randomUUID().toString()); // we'd rather not hit than use entries of another version
+        }
+    }
+
+    /** The relative names and the content of the class files */
+    private static void updateDirectory(MessageDigest digest, Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.filter(file -> file.toString().endsWith(".class")).sorted().collect(toList())) {
+                update(digest, directory.relativize(file).toString().replace(File.separatorChar, '/') + "\n");
+                digest.update(Files.readAllBytes(file));
+            }
+        }
+    }
+
+    /** The names and CRCs of the class files, without inflating them; or the whole file, if it's not a zip */
+    private static void updateArchive(MessageDigest digest, Path archive) throws IOException {
+        Map<String, Long> crcs = new TreeMap<>();
+        try (ZipFile zipFile = new ZipFile(archive.toFile())) {
+            zipFile.stream().filter(entry -> entry.getName().endsWith(".class")).forEach(entry -> crcs.put(entry.getName(), entry.getCrc()));
+        } catch (ZipException e) {
+            digest.update(Files.readAllBytes(archive));
+            return;
+        }
+        crcs.forEach((name, crc) -> update(digest, name + " " + crc + "\n"));
+    }
+
+    private static void update(MessageDigest digest, String text) { digest.update(text.getBytes(UTF_8)); }
+
+    /** Must be called with all compilation units of the first round, before the first {@link #key(JCCompilationUnit)} */
+    void sign(Collection<JCCompilationUnit> compilationUnits) {
+        List<String> hashes = new ArrayList<>();
+        for (JCCompilationUnit compilationUnit : compilationUnits) {
+            String hash = contentHash(compilationUnit);
+            if (hash == null)
+                return; // can't sign, so we never hit
+            hashes.add(hash);
+        }
+        hashes.sort(null);
+        this.signature = hash(classPathSignature + "\n" + String.join("\n", hashes));
+    }
+
+    /** The key of the entry for this compilation unit, or null if we can't cache it */
+    String key(JCCompilationUnit compilationUnit) {
+        if (signature == null)
+            return null;
+        String contentHash = contentHash(compilationUnit);
+        return (contentHash == null) ? null : hash(signature + "\n" + contentHash);
+    }
+
+    private String contentHash(JCCompilationUnit compilationUnit) {
+        return contentHashes.computeIfAbsent(compilationUnit, unit -> {
+            try {
+                return hash(unit.getSourceFile().getCharContent(true).toString());
+            } catch (IOException e) {
+                return null;
+            }
+        });
+    }
+
+    private static String hash(String text) { return hex(sha256().digest(text.getBytes(UTF_8))); }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        StringBuilder out = new StringBuilder();
+        for (byte b : digest)
+            out.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return out.toString();
+    }
+
+
+    /** The cached entry for this key, or null if there is none or it's not readable, e.g. truncated or corrupt */
+    Entry get(String key) {
+        Path path = directory.resolve(key + SUFFIX);
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Entry entry = Entry.read(buffer);
+            if (entry != null)
+                touch(path);
+            return entry;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** Remember that we used it, so it's not evicted so soon */
+    private void touch(Path path) {
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // evicted by a concurrent build
+        }
+    }
+
+    void put(String key, Entry entry) {
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(directory, key, ".tmp");
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temp))) {
+                entry.write(out);
+            }
+            Files.move(temp, directory.resolve(key + SUFFIX), ATOMIC_MOVE);
+            temp = null;
+        } catch (IOException e) {
+            // it's only a cache
+        } finally {
+            if (temp != null)
+                delete(temp);
+        }
+    }
+
+    /** Delete the least recently used entries, until the directory is not bigger than the maximum size */
+    void evict() {
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            stream.forEach(entries::add);
+        } catch (IOException e) {
+            return;
+        }
+        Map<Path, BasicFileAttributes> attributes = new HashMap<>();
+        long size = 0;
+        for (Path entry : entries) {
+            try {
+                BasicFileAttributes entryAttributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                attributes.put(entry, entryAttributes);
+                size += entryAttributes.size();
+            } catch (IOException e) {
+                // evicted by a concurrent build
+            }
+        }
+        if (size <= maxSize)
+            return;
+        List<Path> leastRecentlyUsedFirst = new ArrayList<>(attributes.keySet());
+        leastRecentlyUsedFirst.sort(comparing(entry -> attributes.get(entry).lastModifiedTime()));
+        for (Path entry : leastRecentlyUsedFirst) {
+            if (size <= maxSize)
+                break;
+            delete(entry);
+            size -= attributes.get(entry).size();
+        }
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // still in use, e.g. mapped on Windows
+        }
+    }
+
+
+    /**
+     * The dependencies of the top level types of one compilation unit, and its extra imports.
+     * We can't store the elements, so we store the name of the type or member instead, and look it up again when we read it.
+     */
+    static class Entry {
+        /** The top level type names mapped to the targets mapped to the element names */
+        private final Map<String, Map<String, String>> dependencies = new LinkedHashMap<>();
+        final Set<String> extraImports = new LinkedHashSet<>();
+
+        private Entry() {}
+
+        Entry(Map<ClassSymbol, Map<Integer, Element>> dependencies, Set<Integer> extraImports, PackageTable packages) {
+            dependencies.forEach((type, typeDependencies) -> {
+                Map<String, String> names = new LinkedHashMap<>();
+                typeDependencies.forEach((target, element) -> names.put(packages.name(target), name((Symbol) element)));
+                this.dependencies.put(type.getQualifiedName().toString(), names);
+            });
+            extraImports.forEach(extraImport -> this.extraImports.add(packages.name(extraImport)));
+        }
+
+        /** The qualified type name, optionally followed by a <code>#</code> and the member, e.g. <code>foo(java.lang.String)</code> */
+        private static String name(Symbol symbol) {
+            for (Symbol member = null; symbol != null; member = symbol, symbol = symbol.owner) {
+                if (symbol instanceof ClassSymbol && !((ClassSymbol) symbol).getQualifiedName().isEmpty()) {
+                    String typeName = ((ClassSymbol) symbol).getQualifiedName().toString();
+                    return (member == null || member instanceof ClassSymbol) ? typeName : typeName + "#" + member;
+                }
+            }
+            return "";
+        }
+
+        /** The elements are null, if we can't find them any more */
+        Map<ClassSymbol, Map<Integer, Element>> dependencies(JavacElements elements, PackageTable packages) {
+            Map<ClassSymbol, Map<Integer, Element>> out = new LinkedHashMap<>();
+            dependencies.forEach((typeName, names) -> {
+                ClassSymbol type = elements.getTypeElement(typeName);
+                if (type == null)
+                    return;
+                Map<Integer, Element> typeDependencies = new HashMap<>();
+                names.forEach((target, name) -> typeDependencies.put(packages.id(target), element(elements, name)));
+                out.put(type, typeDependencies);
+            });
+            return out;
+        }
+
+        private static Element element(JavacElements elements, String name) {
+            int hash = name.indexOf('#');
+            ClassSymbol type = elements.getTypeElement((hash < 0) ? name : name.substring(0, hash));
+            if (type == null || hash < 0)
+                return type;
+            String memberName = name.substring(hash + 1);
+            for (Element member : type.getEnclosedElements())
+                if (member.toString().equals(memberName))
+                    return member;
+            return type;
+        }
+
+        private static Entry read(ByteBuffer buffer) {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                return null;
+            Entry entry = new Entry();
+            for (int types = readLength(buffer, 4); types > 0; types--) {
+                Map<String, String> names = new LinkedHashMap<>();
+                entry.dependencies.put(readString(buffer), names);
+                for (int targets = readLength(buffer, 8); targets > 0; targets--)
+                    names.put(readString(buffer), readString(buffer));
+            }
+            for (int imports = readLength(buffer, 4); imports > 0; imports--)
+                entry.extraImports.add(readString(buffer));
+            return entry;
+        }
+
+        private static String readString(ByteBuffer buffer) {
+            byte[] bytes = new byte[readLength(buffer, 1)];
+            buffer.get(bytes);
+            return new String(bytes, UTF_8);
+        }
+
+        /** A count of items of at least that many bytes, that still fit into the buffer, so a corrupt entry can't make us allocate too much */
+        private static int readLength(ByteBuffer buffer, int minItemSize) {
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining() / minItemSize)
+                throw new IllegalArgumentException("invalid length " + length);
+            return length;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(dependencies.size());
+            for (Map.Entry<String, Map<String, String>> type : dependencies.entrySet()) {
+                writeString(out, type.getKey());
+                out.writeInt(type.getValue().size());
+                for (Map.Entry<String, String> target : type.getValue().entrySet()) {
+                    writeString(out, target.getKey());
+                    writeString(out, target.getValue());
+                }
+            }
+            out.writeInt(extraImports.size());
+            for (String extraImport : extraImports)
+                writeString(out, extraImport);
+        }
+
+        private static void writeString(DataOutputStream out, String string) throws IOException {
+            byte[] bytes = string.getBytes(UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.github.t1.pdap;
+
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.code.Symbol.ClassSymbol;
+import com.sun.tools.javac.code.Symbol.MethodSymbol;
+import com.sun.tools.javac.code.Symbol.PackageSymbol;
+import com.sun.tools.javac.code.Symbol.VarSymbol;
+import com.sun.tools.javac.code.Type;
+import com.sun.tools.javac.code.Type.ArrayType;
+import com.sun.tools.javac.code.Type.WildcardType;
+import com.sun.tools.javac.tree.JCTree.JCAnnotation;
+import com.sun.tools.javac.tree.JCTree.JCClassDecl;
+import com.sun.tools.javac.tree.JCTree.JCFieldAccess;
+import com.sun.tools.javac.tree.JCTree.JCIdent;
+import com.sun.tools.javac.tree.JCTree.JCLambda;
+import com.sun.tools.javac.tree.JCTree.JCMemberReference;
+import com.sun.tools.javac.tree.JCTree.JCMethodDecl;
+import com.sun.tools.javac.tree.JCTree.JCMethodInvocation;
+import com.sun.tools.javac.tree.JCTree.JCNewClass;
+import com.sun.tools.javac.tree.JCTree.JCVariableDecl;
+import com.sun.tools.javac.tree.TreeScanner;
+
+import javax.lang.model.element.Element;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Collects the dependencies of a top level type from its attributed tree, i.e. from the symbols and types
+ * javac has already resolved, instead of resolving names heuristically like the {@link DependenciesCollector}.
+ * So it also finds the dependencies of, e.g., lambdas, method references, and local variable type inference.
+ */
+class AttributedDependenciesCollector {
+    private final PackageTable packages;
+    /** The {@link PackageTable} ids of the dependencies found mapped to the first element that uses it */
+    final Map<Integer, Element> dependencies = new HashMap<>();
+
+    /** The classes, methods, and fields we are in; we don't report on local elements, as the processor can't */
+    private final Deque<Symbol> members = new ArrayDeque<>();
+
+    AttributedDependenciesCollector(PackageTable packages, JCClassDecl classDecl) {
+        this.packages = packages;
+        classDecl.accept(new TreeScanner() {
+            @Override public void visitClassDef(JCClassDecl tree) {
+                boolean member = isMember(tree.sym);
+                if (member)
+                    members.push(tree.sym);
+                super.visitClassDef(tree);
+                if (member)
+                    members.pop();
+            }
+
+            @Override public void visitMethodDef(JCMethodDecl tree) {
+                boolean member = isMember(tree.sym);
+                if (member)
+                    members.push(tree.sym);
+                super.visitMethodDef(tree);
+                if (member)
+                    members.pop();
+            }
+
+            @Override public void visitVarDef(JCVariableDecl tree) {
+                boolean member = isMember(tree.sym);
+                if (member)
+                    members.push(tree.sym);
+                if (tree.sym != null)
+                    addType(tree.sym.type); // `var` and implicit lambda parameters have no type tree
+                super.visitVarDef(tree);
+                if (member)
+                    members.pop();
+            }
+
+            @Override public void visitAnnotation(JCAnnotation tree) {
+                // annotations don't create a strong dependency
+            }
+
+            @Override public void visitIdent(JCIdent tree) {
+                addSymbol(tree.sym);
+                super.visitIdent(tree);
+            }
+
+            @Override public void visitSelect(JCFieldAccess tree) {
+                addSymbol(tree.sym);
+                super.visitSelect(tree);
+            }
+
+            @Override public void visitNewClass(JCNewClass tree) {
+                addSymbol(tree.constructor);
+                super.visitNewClass(tree);
+            }
+
+            @Override public void visitApply(JCMethodInvocation tree) {
+                addType(tree.type);
+                super.visitApply(tree);
+            }
+
+            @Override public void visitLambda(JCLambda tree) {
+                addType(tree.type);
+                super.visitLambda(tree);
+            }
+
+            @Override public void visitReference(JCMemberReference tree) {
+                addSymbol(tree.sym);
+                addType(tree.type);
+                super.visitReference(tree);
+            }
+        });
+        dependencies.remove(packages.id(classDecl.sym.packge().getQualifiedName()));
+        dependencies.remove(packages.id("java.lang"));
+    }
+
+    private static boolean isMember(Symbol symbol) {
+        return symbol != null && (symbol.owner instanceof ClassSymbol || symbol.owner instanceof PackageSymbol);
+    }
+
+    private void addSymbol(Symbol symbol) {
+        if (symbol instanceof ClassSymbol)
+            addPackage(symbol.packge());
+        else if ((symbol instanceof MethodSymbol || symbol instanceof VarSymbol) && symbol.owner instanceof ClassSymbol)
+            addPackage(symbol.owner.packge());
+    }
+
+    private void addType(Type type) {
+        if (type == null)
+            return;
+        switch (type.getKind()) {
+            case DECLARED:
+                addSymbol(type.tsym);
+                for (Type typeArgument : type.getTypeArguments())
+                    addType(typeArgument);
+                break;
+            case ARRAY:
+                addType(((ArrayType) type).elemtype);
+                break;
+            case WILDCARD:
+                addType(((WildcardType) type).type);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void addPackage(PackageSymbol packageSymbol) {
+        if (packageSymbol == null || packageSymbol.isUnnamed())
+            return;
+        dependencies.putIfAbsent(packages.id(packageSymbol.getQualifiedName()), members.peek());
+    }
+}
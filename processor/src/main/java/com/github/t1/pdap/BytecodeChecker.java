@@ -0,0 +1,309 @@
+package com.github.t1.pdap;
+
+import javax.tools.Diagnostic.Kind;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.annotation.Annotation;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.stream.Collectors.toList;
+import static javax.tools.Diagnostic.Kind.ERROR;
+
+/**
+ * Checks the package dependencies of already compiled classes, e.g. in a build stage that only assembles prebuilt modules,
+ * where the annotation processor can't run: <code>java -jar pdap.jar target/classes lib/some.jar</code>.
+ * It reads the class files directly instead of running javac: the files in directories are memory mapped,
+ * directories may also contain jars, e.g. an exploded war, and jars may contain jars, e.g. a war.
+ * The class files are parsed in parallel on a fork/join pool, and then checked like the plugin would.
+ * As every class is checked, it also finds cycles through packages without rules, like <code>-Apdap.inferred</code>.
+ * The first <code>META-INF/pdap.rules</code> in a directory or archive is the {@link RulesFile}.
+ * It doesn't know the class path, so an allowed package that is not found is an unused dependency, not an unknown package.
+ * It exits with 1, if there is any error.
+ */
+public class BytecodeChecker {
+    /** The number of class files a fork/join task parses without splitting */
+    private static final int BATCH = 64;
+
+    public static void main(String... args) {
+        if (args.length == 0) {
+            System.err.println("usage: java -jar pdap.jar <class directory, jar, or war>...");
+            System.exit(2);
+        }
+        try {
+            int errors = new BytecodeChecker(System.err).check(Stream.of(args).map(Paths::get).collect(toList()));
+            System.exit((errors == 0) ? 0 : 1);
+        } catch (UncheckedIOException | IllegalArgumentException e) {
+            System.err.println("error: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    /** A class file, read only when it's parsed, so we can read them in parallel */
+    private interface Input {
+        String name();
+
+        ByteBuffer read() throws IOException;
+    }
+
+    private final PrintStream out;
+    private final PackageTable packages = new PackageTable();
+    private final Locations locations = new Locations();
+    /** The jars we read from, to be closed when we're done */
+    private final List<ZipFile> zipFiles = new ArrayList<>();
+    /** Optional */
+    private RulesFile rulesFile;
+
+    /** The package-infos by package name */
+    private final Map<String, ClassFile> packageInfos = new HashMap<>();
+    /** The location of the package-info of every package id, or of its first class, if there is none */
+    private final Map<Integer, Integer> packageLocations = new HashMap<>();
+    /** The dependencies found per source package id, mapped to the {@link Locations location} of the first class that uses it */
+    private final Map<Integer, Map<Integer, Integer>> actualDependencies = new LinkedHashMap<>();
+    private int errors = 0;
+
+    BytecodeChecker(PrintStream out) { this.out = out; }
+
+    /** @return the number of errors */
+    int check(List<Path> paths) {
+        try {
+            List<Input> inputs = new ArrayList<>();
+            for (Path path : paths)
+                add(path, inputs);
+            ClassFile[] classFiles = new ClassFile[inputs.size()];
+            ForkJoinPool.commonPool().invoke(new Parse(inputs, classFiles, 0, classFiles.length));
+            for (int i = 0; i < classFiles.length; i++)
+                if (classFiles[i] != null)
+                    collect(classFiles[i], inputs.get(i));
+            report();
+            return errors;
+        } finally {
+            close();
+        }
+    }
+
+    private void add(Path path, List<Input> inputs) {
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> files = Files.walk(path)) {
+                for (Path file : files.filter(Files::isRegularFile).sorted().collect(toList()))
+                    addFile(file, inputs);
+            } catch (IOException e) {
+                throw new UncheckedIOException("can't read directory " + path, e);
+            }
+        } else if (Files.isRegularFile(path)) {
+            addFile(path, inputs);
+        } else {
+            throw new IllegalArgumentException("not found: " + path);
+        }
+    }
+
+    private void addFile(Path file, List<Input> inputs) {
+        String fileName = file.getFileName().toString();
+        if (fileName.endsWith(".class")) {
+            inputs.add(new Input() {
+                @Override public String name() { return file.toString(); }
+
+                @Override public ByteBuffer read() throws IOException {
+                    try (FileChannel channel = FileChannel.open(file, READ)) {
+                        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    }
+                }
+            });
+        } else if (file.endsWith(RulesFile.RESOURCE)) {
+            if (rulesFile == null)
+                rulesFile = RulesFile.read(file);
+        } else if (isArchive(fileName)) {
+            try {
+                ZipFile zipFile = new ZipFile(file.toFile());
+                zipFiles.add(zipFile);
+                for (ZipEntry entry : zipFile.stream().collect(toList())) {
+                    String name = file + "!/" + entry.getName();
+                    if (isClass(entry)) {
+                        inputs.add(new Input() {
+                            @Override public String name() { return name; }
+
+                            @Override public ByteBuffer read() throws IOException {
+                                try (InputStream in = zipFile.getInputStream(entry)) {
+                                    return ByteBuffer.wrap(readAll(in));
+                                }
+                            }
+                        });
+                    } else if (entry.getName().equals(RulesFile.RESOURCE)) {
+                        if (rulesFile == null)
+                            try (InputStream in = zipFile.getInputStream(entry)) {
+                                rulesFile = RulesFile.read(Paths.get(name).toUri(), name, new String(readAll(in), UTF_8));
+                            }
+                    } else if (isArchive(entry.getName())) {
+                        try (InputStream in = zipFile.getInputStream(entry)) {
+                            addNested(name, new ZipInputStream(in), inputs);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("can't read archive " + file, e);
+            }
+        }
+    }
+
+    /** The class files in a jar in an archive, e.g. in the <code>WEB-INF/lib</code> of a war, read eagerly */
+    private void addNested(String archive, ZipInputStream zip, List<Input> inputs) throws IOException {
+        for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+            if (!isClass(entry))
+                continue;
+            String name = archive + "!/" + entry.getName();
+            ByteBuffer bytes = ByteBuffer.wrap(readAll(zip));
+            inputs.add(new Input() {
+                @Override public String name() { return name; }
+
+                @Override public ByteBuffer read() { return bytes; }
+            });
+        }
+    }
+
+    /** Without the classes for other Java versions in a multi-release jar */
+    private static boolean isClass(ZipEntry entry) {
+        return !entry.isDirectory() && entry.getName().endsWith(".class") && !entry.getName().startsWith("META-INF/");
+    }
+
+    private static boolean isArchive(String name) { return name.endsWith(".jar") || name.endsWith(".war"); }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+            out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+
+    private void close() {
+        for (ZipFile zipFile : zipFiles) {
+            try {
+                zipFile.close();
+            } catch (IOException e) {
+                // we're done reading anyway
+            }
+        }
+    }
+
+    private static class Parse extends RecursiveAction {
+        private final List<Input> inputs;
+        private final ClassFile[] classFiles;
+        private final int from;
+        private final int to;
+
+        private Parse(List<Input> inputs, ClassFile[] classFiles, int from, int to) {
+            this.inputs = inputs;
+            this.classFiles = classFiles;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override protected void compute() {
+            if (to - from <= BATCH) {
+                for (int i = from; i < to; i++)
+                    classFiles[i] = parse(inputs.get(i));
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Parse(inputs, classFiles, from, middle), new Parse(inputs, classFiles, middle, to));
+            }
+        }
+
+        /** @return null for a <code>module-info</code> */
+        private static ClassFile parse(Input input) {
+            try {
+                ClassFile classFile = ClassFile.read(input.read());
+                return classFile.name.equals("module-info") ? null : classFile;
+            } catch (IOException e) {
+                throw new UncheckedIOException("can't read " + input.name(), e);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("can't parse " + input.name() + ": " + e, e);
+            }
+        }
+    }
+
+    private void collect(ClassFile classFile, Input input) {
+        String packageName = classFile.packageName();
+        int source = packages.id(packageName);
+        int location = locations.of(new ClassFileObject(input.name()));
+        if (classFile.isPackageInfo()) {
+            packageInfos.put(packageName, classFile);
+            packageLocations.put(source, location);
+            return;
+        }
+        packageLocations.putIfAbsent(source, location);
+        Map<Integer, Integer> packageDependencies = actualDependencies.computeIfAbsent(source, p -> new LinkedHashMap<>());
+        for (String target : classFile.dependencies)
+            if (!target.equals(packageName) && !target.equals("java.lang"))
+                packageDependencies.putIfAbsent(packages.id(target), location);
+    }
+
+    private void report() {
+        PackageRules.Lookup lookup = new PackageRules.Lookup() {
+            /** We only see the classes we check, not the libraries, so a target we don't find may still exist, just not be used */
+            @Override public boolean exists(String packageName) { return true; }
+
+            @Override public String[] annotation(String packageName, Class<? extends Annotation> type) {
+                ClassFile packageInfo = packageInfos.get(packageName);
+                if (packageInfo == null)
+                    return null;
+                return (type == AllowDependenciesOn.class) ? packageInfo.allowed : packageInfo.forbidden;
+            }
+        };
+        PackageRules rules = new PackageRules((rulesFile == null) ? lookup : rulesFile.lookup(lookup), packages, Stats.DISABLED);
+        Dependencies dependencies = new Dependencies(rules);
+        actualDependencies.forEach((source, packageDependencies) -> {
+            dependencies.scan(source);
+            packageDependencies.forEach((target, location) -> dependencies.use(location, source, target));
+        });
+        Reporter reporter = new Reporter(rules, locations) {
+            @Override int packageLocation(int id) {
+                int location = packageLocations.getOrDefault(id, Locations.NONE);
+                return (rulesFile == null) ? location : rulesFile.packageLocation(locations, packages.name(id), location);
+            }
+
+            @Override void print(Kind kind, String message, int location) {
+                if (kind == ERROR)
+                    errors++;
+                out.println((Locations.isKnown(location) ? locations.toString(location) + ": " : "")
+                    + kind.name().toLowerCase(Locale.ROOT) + ": " + message);
+            }
+        };
+        if (rulesFile != null)
+            rulesFile.errors(locations, (message, location) -> reporter.emit(ERROR, message, location));
+        reporter.report(dependencies);
+    }
+
+    /** We only need the name to report at */
+    private static class ClassFileObject extends SimpleJavaFileObject {
+        private final String name;
+
+        private ClassFileObject(String name) {
+            super(Paths.get(name).toUri(), JavaFileObject.Kind.CLASS);
+            this.name = name;
+        }
+
+        @Override public String getName() { return name; }
+    }
+}
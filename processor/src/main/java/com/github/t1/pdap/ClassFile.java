@@ -0,0 +1,440 @@
+package com.github.t1.pdap;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Reads what we need from a class file without javac: its name, the packages of the types it uses,
+ * and for a <code>package-info</code> the values of its {@link AllowDependenciesOn} and {@link ForbidTransitiveDependenciesOn}.
+ * Like the processor, it doesn't count annotations, nor types that a value only passes through, e.g. the parameter types
+ * of the methods it calls; and it must not count what the compiler generates, e.g. the <code>java.lang.invoke</code>
+ * bootstrap of a lambda. So instead of taking all classes in the constant pool, it reads the instructions that use them.
+ */
+class ClassFile {
+    private static final int UTF8 = 1, INTEGER = 3, FLOAT = 4, LONG = 5, DOUBLE = 6, CLASS = 7, STRING = 8,
+        FIELD_REF = 9, METHOD_REF = 10, INTERFACE_METHOD_REF = 11, NAME_AND_TYPE = 12,
+        METHOD_HANDLE = 15, METHOD_TYPE = 16, DYNAMIC = 17, INVOKE_DYNAMIC = 18, MODULE = 19, PACKAGE = 20;
+
+    private static final String ALLOW = "L" + AllowDependenciesOn.class.getName().replace('.', '/') + ";";
+    private static final String FORBID = "L" + ForbidTransitiveDependenciesOn.class.getName().replace('.', '/') + ";";
+
+    /** The length of every instruction, except for the switches and <code>wide</code> */
+    private static final byte[] INSTRUCTION_LENGTHS = new byte[256];
+
+    static {
+        Arrays.fill(INSTRUCTION_LENGTHS, (byte) 1);
+        lengths(2, 16, 18, 21, 22, 23, 24, 25, 54, 55, 56, 57, 58, 169, 188);
+        lengths(3, 17, 19, 20, 132, 178, 179, 180, 181, 182, 183, 184, 187, 189, 192, 193, 198, 199);
+        for (int opcode = 153; opcode <= 168; opcode++)
+            INSTRUCTION_LENGTHS[opcode] = 3;
+        lengths(4, 197);
+        lengths(5, 185, 186, 200, 201);
+    }
+
+    private static void lengths(int length, int... opcodes) {
+        for (int opcode : opcodes)
+            INSTRUCTION_LENGTHS[opcode] = (byte) length;
+    }
+
+    static ClassFile read(ByteBuffer buffer) { return new ClassFile(buffer); }
+
+    private final ByteBuffer buffer;
+    private int position = 0;
+    /** The offset of every constant after its tag */
+    private final int[] offsets;
+    private final byte[] tags;
+    /** The constants we have already added */
+    private final BitSet added = new BitSet();
+
+    /** The binary name, e.g. <code>a.b.C$D</code> */
+    final String name;
+    /** The names of the packages of the types used, maybe including its own */
+    final Set<String> dependencies = new LinkedHashSet<>();
+    /** The values of the {@link AllowDependenciesOn} annotation of a package-info, or null */
+    String[] allowed;
+    /** The values of the {@link ForbidTransitiveDependenciesOn} annotation of a package-info, or null */
+    String[] forbidden;
+
+    private ClassFile(ByteBuffer buffer) {
+        this.buffer = buffer;
+        if (u4() != 0xCAFEBABE)
+            throw new IllegalArgumentException("not a class file");
+        position += 4; // version
+        int count = u2();
+        this.offsets = new int[count];
+        this.tags = new byte[count];
+        for (int i = 1; i < count; i++) {
+            int tag = u1();
+            tags[i] = (byte) tag;
+            offsets[i] = position;
+            position += constantLength(tag);
+            if (tag == LONG || tag == DOUBLE)
+                i++;
+        }
+        position += 2; // access flags
+        this.name = utf8(u2At(offsets[u2()])).replace('/', '.');
+        addClass(u2());
+        for (int i = u2(); i > 0; i--)
+            addClass(u2());
+        members();
+        members();
+        attributes(true);
+    }
+
+    private int constantLength(int tag) {
+        switch (tag) {
+            case UTF8:
+                return 2 + u2At(position);
+            case CLASS:
+            case STRING:
+            case METHOD_TYPE:
+            case MODULE:
+            case PACKAGE:
+                return 2;
+            case METHOD_HANDLE:
+                return 3;
+            case INTEGER:
+            case FLOAT:
+            case FIELD_REF:
+            case METHOD_REF:
+            case INTERFACE_METHOD_REF:
+            case NAME_AND_TYPE:
+            case DYNAMIC:
+            case INVOKE_DYNAMIC:
+                return 4;
+            case LONG:
+            case DOUBLE:
+                return 8;
+            default:
+                throw new IllegalArgumentException("unknown constant pool tag " + tag + " at " + (position - 1));
+        }
+    }
+
+    String packageName() {
+        int dot = name.lastIndexOf('.');
+        return (dot < 0) ? "" : name.substring(0, dot);
+    }
+
+    boolean isPackageInfo() { return name.endsWith("package-info"); }
+
+    /** The fields or the methods */
+    private void members() {
+        for (int i = u2(); i > 0; i--) {
+            position += 4; // access flags and name
+            addSignature(u2());
+            attributes(false);
+        }
+    }
+
+    private void attributes(boolean type) {
+        for (int i = u2(); i > 0; i--) {
+            String attribute = utf8(u2());
+            int length = u4();
+            int end = position + length;
+            switch (attribute) {
+                case "Signature":
+                    addSignature(u2());
+                    break;
+                case "Exceptions":
+                    for (int j = u2(); j > 0; j--)
+                        addClass(u2());
+                    break;
+                case "Code":
+                    code();
+                    break;
+                case "BootstrapMethods":
+                    bootstrapMethods();
+                    break;
+                case "RuntimeInvisibleAnnotations":
+                case "RuntimeVisibleAnnotations":
+                    if (type && isPackageInfo())
+                        annotations();
+                    break;
+                default:
+                    break;
+            }
+            position = end;
+        }
+    }
+
+    private void code() {
+        position += 4; // max stack and locals
+        int length = u4();
+        instructions(position, length);
+        position += length;
+        for (int i = u2(); i > 0; i--) { // exception table
+            position += 6;
+            addClass(u2());
+        }
+        for (int i = u2(); i > 0; i--) {
+            String attribute = utf8(u2());
+            int end = u4() + position;
+            if (attribute.equals("LocalVariableTable") || attribute.equals("LocalVariableTypeTable")) {
+                for (int j = u2(); j > 0; j--) {
+                    position += 6; // start, length, and name
+                    addSignature(u2());
+                    position += 2; // index
+                }
+            }
+            position = end;
+        }
+    }
+
+    private void instructions(int start, int length) {
+        for (int pc = 0; pc < length; ) {
+            int opcode = buffer.get(start + pc) & 0xff;
+            switch (opcode) {
+                case 18: // ldc
+                    addConstant(buffer.get(start + pc + 1) & 0xff);
+                    break;
+                case 19: // ldc_w
+                case 20: // ldc2_w
+                case 178: // getstatic
+                case 179: // putstatic
+                case 180: // getfield
+                case 181: // putfield
+                case 182: // invokevirtual
+                case 183: // invokespecial
+                case 184: // invokestatic
+                case 185: // invokeinterface
+                case 187: // new
+                case 189: // anewarray
+                case 192: // checkcast
+                case 193: // instanceof
+                case 197: // multianewarray
+                    addConstant(u2At(start + pc + 1));
+                    break;
+                case 170: { // tableswitch
+                    int table = start + ((pc + 4) & ~3);
+                    pc = table - start + 12 + 4 * (buffer.getInt(table + 8) - buffer.getInt(table + 4) + 1);
+                    continue;
+                }
+                case 171: { // lookupswitch
+                    int table = start + ((pc + 4) & ~3);
+                    pc = table - start + 8 + 8 * buffer.getInt(table + 4);
+                    continue;
+                }
+                case 196: // wide
+                    pc += ((buffer.get(start + pc + 1) & 0xff) == 132) ? 6 : 4;
+                    continue;
+                default:
+                    break;
+            }
+            pc += INSTRUCTION_LENGTHS[opcode];
+        }
+    }
+
+    /** Only the arguments, e.g. a method reference, but not the bootstrap method, e.g. the lambda meta factory */
+    private void bootstrapMethods() {
+        for (int i = u2(); i > 0; i--) {
+            position += 2;
+            for (int j = u2(); j > 0; j--)
+                addConstant(u2());
+        }
+    }
+
+    private void addConstant(int index) {
+        switch (tags[index]) {
+            case CLASS:
+                addClass(index);
+                break;
+            case FIELD_REF:
+            case METHOD_REF:
+            case INTERFACE_METHOD_REF:
+                addClass(u2At(offsets[index]));
+                break;
+            case METHOD_HANDLE:
+                addConstant(u2At(offsets[index] + 1));
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void addClass(int index) {
+        if (index == 0 || added.get(index))
+            return;
+        added.set(index);
+        String className = utf8(u2At(offsets[index]));
+        if (className.startsWith("["))
+            signature(className, 0);
+        else
+            addType(className, 0, className.length());
+    }
+
+    /** A descriptor or a generic signature */
+    private void addSignature(int index) {
+        if (added.get(index))
+            return;
+        added.set(index);
+        String signature = utf8(index);
+        int i = 0;
+        if (signature.startsWith("<"))
+            i = typeParameters(signature, 1);
+        while (i < signature.length()) {
+            char c = signature.charAt(i);
+            if (c == '(' || c == ')' || c == '^')
+                i++;
+            else
+                i = signature(signature, i);
+        }
+    }
+
+    private int typeParameters(String signature, int i) {
+        while (signature.charAt(i) != '>') {
+            i = signature.indexOf(':', i);
+            while (signature.charAt(i) == ':') {
+                i++;
+                if ("LT[".indexOf(signature.charAt(i)) >= 0)
+                    i = signature(signature, i);
+            }
+        }
+        return i + 1;
+    }
+
+    /** Add the types of the type signature at <code>i</code>; @return the index after it */
+    private int signature(String signature, int i) {
+        switch (signature.charAt(i)) {
+            case 'L': {
+                int start = ++i;
+                while (";<.".indexOf(signature.charAt(i)) < 0)
+                    i++;
+                addType(signature, start, i);
+                while (true) {
+                    switch (signature.charAt(i)) {
+                        case ';':
+                            return i + 1;
+                        case '<':
+                            i++;
+                            while (signature.charAt(i) != '>') {
+                                if (signature.charAt(i) == '*') {
+                                    i++;
+                                } else {
+                                    if (signature.charAt(i) == '+' || signature.charAt(i) == '-')
+                                        i++;
+                                    i = signature(signature, i);
+                                }
+                            }
+                            i++;
+                            break;
+                        default: // the simple name of an inner class
+                            i++;
+                            while (";<.".indexOf(signature.charAt(i)) < 0)
+                                i++;
+                            break;
+                    }
+                }
+            }
+            case 'T':
+                return signature.indexOf(';', i) + 1;
+            case '[':
+                return signature(signature, i + 1);
+            default: // primitive
+                return i + 1;
+        }
+    }
+
+    private void addType(String internalName, int start, int end) {
+        int slash = internalName.lastIndexOf('/', end - 1);
+        if (slash >= start)
+            dependencies.add(internalName.substring(start, slash).replace('/', '.'));
+    }
+
+    private void annotations() {
+        for (int i = u2(); i > 0; i--) {
+            String type = utf8(u2());
+            String[] values = new String[0];
+            for (int j = u2(); j > 0; j--) {
+                if (utf8(u2()).equals("value"))
+                    values = strings();
+                else
+                    skipElementValue();
+            }
+            if (type.equals(ALLOW))
+                allowed = values;
+            else if (type.equals(FORBID))
+                forbidden = values;
+        }
+    }
+
+    private String[] strings() {
+        int tag = u1();
+        if (tag == 's')
+            return new String[]{utf8(u2())};
+        if (tag != '[') {
+            position--;
+            skipElementValue();
+            return new String[0];
+        }
+        String[] strings = new String[u2()];
+        for (int i = 0; i < strings.length; i++) {
+            if (u1() == 's') {
+                strings[i] = utf8(u2());
+            } else {
+                position--;
+                skipElementValue();
+                strings[i] = "";
+            }
+        }
+        return strings;
+    }
+
+    private void skipElementValue() {
+        switch (u1()) {
+            case 'e':
+                position += 4;
+                break;
+            case '@':
+                position += 2;
+                for (int i = u2(); i > 0; i--) {
+                    position += 2;
+                    skipElementValue();
+                }
+                break;
+            case '[':
+                for (int i = u2(); i > 0; i--)
+                    skipElementValue();
+                break;
+            default: // a constant or a class
+                position += 2;
+                break;
+        }
+    }
+
+    /** The modified UTF-8 of the constant; class files encode zero and supplementary characters differently */
+    private String utf8(int index) {
+        int offset = offsets[index];
+        int end = offset + 2 + u2At(offset);
+        char[] chars = new char[end - offset - 2];
+        int length = 0;
+        for (int i = offset + 2; i < end; ) {
+            int b = buffer.get(i++) & 0xff;
+            if (b < 0x80)
+                chars[length++] = (char) b;
+            else if ((b & 0xe0) == 0xc0)
+                chars[length++] = (char) (((b & 0x1f) << 6) | (buffer.get(i++) & 0x3f));
+            else
+                chars[length++] = (char) (((b & 0x0f) << 12) | ((buffer.get(i++) & 0x3f) << 6) | (buffer.get(i++) & 0x3f));
+        }
+        return new String(chars, 0, length);
+    }
+
+    private int u1() { return buffer.get(position++) & 0xff; }
+
+    private int u2() {
+        int value = u2At(position);
+        position += 2;
+        return value;
+    }
+
+    private int u2At(int offset) { return buffer.getShort(offset) & 0xffff; }
+
+    private int u4() {
+        int value = buffer.getInt(position);
+        position += 4;
+        return value;
+    }
+}
@@ -0,0 +1,121 @@
+package com.github.t1.pdap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * Finds the strongly connected components of a package graph with more than one package, i.e. the dependency cycles,
+ * with Tarjan's algorithm, so it's linear in the number of packages plus edges.
+ * It's iterative, so deep graphs don't overflow the stack; self-references are ignored.
+ */
+class Cycles {
+    /**
+     * The cycles reachable from the roots
+     *
+     * @param successors the target package ids of a package id, or null if it has none
+     */
+    static List<int[]> of(int[] roots, IntFunction<int[]> successors) { return find(roots, successors, false); }
+
+    /**
+     * All strongly connected components reachable from the roots, including single packages,
+     * in reverse topological order, i.e. every component comes after all the components it depends on.
+     */
+    static List<int[]> components(int[] roots, IntFunction<int[]> successors) { return find(roots, successors, true); }
+
+    private static List<int[]> find(int[] roots, IntFunction<int[]> successors, boolean all) {
+        Cycles cycles = new Cycles(successors, all);
+        for (int root : roots)
+            if (cycles.index(root) == 0)
+                cycles.connect(root);
+        return cycles.found;
+    }
+
+    private final IntFunction<int[]> successors;
+    private final boolean all;
+    private final List<int[]> found = new ArrayList<>();
+
+    /** The visiting order of the packages, starting at 1; 0 means not visited */
+    private int[] index = new int[64];
+    private int[] lowLink = new int[64];
+    private int counter = 0;
+
+    /** The packages visited but not yet assigned to a component */
+    private int[] stack = new int[64];
+    private int stackSize = 0;
+    private final BitSet onStack = new BitSet();
+
+    /** The call frames of the depth first search: the package, its successors, and the next successor to visit */
+    private int[] frameNodes = new int[64];
+    private int[][] frameSuccessors = new int[64][];
+    private int[] framePositions = new int[64];
+    private int frames = 0;
+
+    private Cycles(IntFunction<int[]> successors, boolean all) {
+        this.successors = successors;
+        this.all = all;
+    }
+
+    private int index(int node) { return (node < index.length) ? index[node] : 0; }
+
+    private void connect(int root) {
+        visit(root);
+        while (frames > 0) {
+            int top = frames - 1;
+            int node = frameNodes[top];
+            int[] targets = frameSuccessors[top];
+            if (targets != null && framePositions[top] < targets.length) {
+                int target = targets[framePositions[top]++];
+                if (target == node)
+                    continue;
+                if (index(target) == 0)
+                    visit(target);
+                else if (onStack.get(target))
+                    lowLink[node] = Math.min(lowLink[node], index[target]);
+            } else {
+                frameSuccessors[top] = null;
+                frames--;
+                if (frames > 0) {
+                    int caller = frameNodes[frames - 1];
+                    lowLink[caller] = Math.min(lowLink[caller], lowLink[node]);
+                }
+                if (lowLink[node] == index[node])
+                    component(node);
+            }
+        }
+    }
+
+    private void visit(int node) {
+        if (node >= index.length) {
+            int length = Math.max(2 * index.length, node + 1);
+            index = Arrays.copyOf(index, length);
+            lowLink = Arrays.copyOf(lowLink, length);
+        }
+        index[node] = lowLink[node] = ++counter;
+        if (stackSize == stack.length)
+            stack = Arrays.copyOf(stack, 2 * stack.length);
+        stack[stackSize++] = node;
+        onStack.set(node);
+        if (frames == frameNodes.length) {
+            frameNodes = Arrays.copyOf(frameNodes, 2 * frames);
+            frameSuccessors = Arrays.copyOf(frameSuccessors, 2 * frames);
+            framePositions = Arrays.copyOf(framePositions, 2 * frames);
+        }
+        frameNodes[frames] = node;
+        frameSuccessors[frames] = successors.apply(node);
+        framePositions[frames] = 0;
+        frames++;
+    }
+
+    private void component(int root) {
+        int start = stackSize;
+        do {
+            onStack.clear(stack[--start]);
+        } while (stack[start] != root);
+        if (all || stackSize - start > 1)
+            found.add(Arrays.copyOfRange(stack, start, stackSize));
+        stackSize = start;
+    }
+}
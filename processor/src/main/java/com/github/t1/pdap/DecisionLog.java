@@ -0,0 +1,84 @@
+package com.github.t1.pdap;
+
+import com.github.t1.pdap.Dependencies.Dependency;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Logs every classification of an actual dependency as one line of JSON to the file in the <code>pdap.log</code> option,
+ * e.g. <code>{"source":"a","target":"b","type":"forbidden","file":"/a/A.java","line":3}</code>.
+ * All dependencies are classified in one go at the end of the processing, so a background thread couldn't keep
+ * the compiler from waiting for the disk; we simply write through a buffer, and only report the first failure when we close.
+ */
+class DecisionLog {
+    static final String OPTION = "pdap.log";
+
+    /** @return null if the option is not set */
+    static DecisionLog of(Map<String, String> options) {
+        String file = options.get(OPTION);
+        return (file == null) ? null : new DecisionLog(Paths.get(file));
+    }
+
+    private final Path path;
+    private final Writer out;
+    private IOException failure;
+
+    private DecisionLog(Path path) {
+        this.path = path;
+        try {
+            if (path.getParent() != null)
+                Files.createDirectories(path.getParent());
+            this.out = Files.newBufferedWriter(path, UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException("can't open " + OPTION + " file " + path, e);
+        }
+    }
+
+    void log(Dependency dependency, PackageTable packages, Locations locations) {
+        if (failure != null)
+            return;
+        StringBuilder line = new StringBuilder(128)
+            .append("{\"source\":\"").append(packages.name(dependency.source))
+            .append("\",\"target\":\"").append(packages.name(dependency.target))
+            .append("\",\"type\":\"").append(dependency.type.name().toLowerCase(Locale.ROOT)).append('"');
+        if (Locations.isKnown(dependency.location)) {
+            line.append(",\"file\":\"");
+            escape(locations.file(dependency.location).getName(), line);
+            line.append("\",\"line\":").append(locations.line(dependency.location));
+        }
+        try {
+            out.append(line).append("}\n");
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    private static void escape(String string, StringBuilder out) {
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c == '"' || c == '\\')
+                out.append('\\');
+            out.append(c);
+        }
+    }
+
+    void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            if (failure == null)
+                failure = e;
+        }
+        if (failure != null)
+            throw new UncheckedIOException("can't write " + OPTION + " file " + path, failure);
+    }
+}
@@ -2,15 +2,11 @@ package com.github.t1.pdap;
 
 import com.github.t1.pdap.Dependencies.Dependency.Type;
 
-import javax.lang.model.element.Element;
-import javax.lang.model.element.PackageElement;
-import javax.lang.model.util.Elements;
-import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.function.IntFunction;
 import java.util.stream.Stream;
 
 import static com.github.t1.pdap.Dependencies.Dependency.Type.CYCLE;
@@ -19,6 +15,7 @@ import static com.github.t1.pdap.Dependencies.Dependency.Type.INFERRED;
 import static com.github.t1.pdap.Dependencies.Dependency.Type.INVALID;
 import static com.github.t1.pdap.Dependencies.Dependency.Type.PRIMARY;
 import static com.github.t1.pdap.Dependencies.Dependency.Type.SECONDARY;
+import static java.util.Collections.emptyList;
 
 class Dependencies {
     static class Dependency {
@@ -36,113 +33,173 @@ class Dependencies {
             /** An dependency that is part of a dependency cycle */
             CYCLE;
 
-            public Dependency dependency(String source, String target) { return new Dependency(source, target, this); }
+            public Dependency dependency(int source, int target) { return new Dependency(source, target, this); }
         }
 
-        final String source;
-        final String target;
+        /** The {@link PackageTable} ids of the source and target packages */
+        final int source;
+        final int target;
         final Type type;
 
-        /** Some source element that requires this dependency or null if not applicable or not found */
-        Element element;
+        /** The {@link Locations location} of some element that requires this dependency, or {@link Locations#NONE} */
+        int location = Locations.NONE;
         boolean used = false;
 
-        Dependency(String source, String target, Type type) {
+        Dependency(int source, int target, Type type) {
             this.source = source;
             this.target = target;
             this.type = type;
         }
     }
 
-    private final Elements elements;
+    private final PackageRules rules;
+    /** All dependencies in the order they have been added, i.e. the order they are reported */
     private final List<Dependency> dependencies = new ArrayList<>();
-    private final List<PackageElement> missingDependencies = new ArrayList<>();
+    /** The index of every dependency in the list by its {@link PackageTable#edge(int, int) edge} */
+    private final EdgeIndex index = new EdgeIndex();
+    private final BitSet scanned = new BitSet();
+    private final BitSet missing = new BitSet();
+    /** The ids of the packages without rules, in the order they have been scanned */
+    private final List<Integer> missingDependencies = new ArrayList<>();
+
+    Dependencies(PackageRules rules) {
+        this.rules = rules;
+    }
 
-    Dependencies(Elements elements) {
-        this.elements = elements;
+    void scan(int source) {
+        try (Events.Duration ignored = Events.INSTANCE.packageScan(rules.packages.name(source))) {
+            scan(rules.get(source));
+        }
     }
 
-    void scan(String source) {
-        DependenciesCollector collector = new DependenciesCollector(source);
-        if (collector.all == null) {
-            missingDependencies.add(elements.getPackageElement(source));
+    private void scan(PackageRules.Node node) {
+        int source = node.id;
+        scanned.set(source);
+        if (!node.isChecked()) {
+            if (node.exists() && !missing.get(source)) {
+                missing.set(source);
+                missingDependencies.add(source);
+            }
         } else {
-            collector.all.forEach(target -> {
-                Type type = source.equals(target) ? CYCLE : collector.isPrimary(target) ? PRIMARY : SECONDARY;
-                dependencies.add(type.dependency(source, target));
-            });
-            collector.invalid.forEach(invalid -> dependencies.add(INVALID.dependency(invalid.getKey(), invalid.getValue())));
+            for (int target : node.allowed()) {
+                Type type = (source == target) ? CYCLE : node.isPrimary(target) ? PRIMARY : SECONDARY;
+                add(type.dependency(source, target));
+            }
+            for (int pattern : node.patterns())
+                add((node.isPrimary(pattern) ? PRIMARY : SECONDARY).dependency(source, pattern));
+            for (long invalid : node.invalid())
+                add(INVALID.dependency(PackageTable.source(invalid), PackageTable.target(invalid)));
         }
     }
 
-    void use(Element element, String source, String target) {
-        dependency(element, source, target).used = true;
+    /** Add the dependency, unless there already is one for the same source and target */
+    private Dependency add(Dependency dependency) {
+        long edge = PackageTable.edge(dependency.source, dependency.target);
+        int existing = index.get(edge);
+        if (existing >= 0)
+            return dependencies.get(existing);
+        index.put(edge, dependencies.size());
+        dependencies.add(dependency);
+        return dependency;
     }
 
-    private Dependency dependency(Element element, String source, String target) {
-        return dependencies.stream()
-            .filter(dependency -> dependency.target.equals(target))
-            .filter(dependency -> dependency.source.equals(source))
-            .findAny()
-            .orElseGet(() -> {
-                Type type = missing(source) ? INFERRED : FORBIDDEN;
-                Dependency dependency = type.dependency(source, target);
-                dependency.element = element;
-                dependencies.add(dependency);
-                return dependency;
-            });
+    void use(int location, int source, int target) {
+        Dependency dependency = dependency(location, source, target);
+        dependency.used = true;
+        if (dependency.location == Locations.NONE)
+            dependency.location = location;
     }
 
-    private boolean missing(String source) {
-        return missing().anyMatch(packageElement -> packageElement.getQualifiedName().toString().equals(source));
+    /** The dependency from the source to the target package, or null if there is none */
+    Dependency get(int source, int target) {
+        int index = this.index.get(PackageTable.edge(source, target));
+        return (index < 0) ? null : dependencies.get(index);
     }
 
-    Stream<PackageElement> missing() { return missingDependencies.stream(); }
+    private Dependency dependency(int location, int source, int target) {
+        int existing = index.get(PackageTable.edge(source, target));
+        if (existing >= 0)
+            return dependencies.get(existing);
+        PackageRules.Node node = rules.get(source);
+        int pattern = node.isChecked() ? node.matchingPattern(target) : -1;
+        Type type;
+        if (pattern >= 0) {
+            get(source, pattern).used = true;
+            type = node.isPrimary(pattern) ? PRIMARY : SECONDARY;
+        } else {
+            type = missing.get(source) ? INFERRED : FORBIDDEN;
+        }
+        Dependency dependency = add(type.dependency(source, target));
+        dependency.location = location;
+        return dependency;
+    }
 
-    Stream<Dependency> stream() { return dependencies.stream(); }
+    /** The cycles in the allowed dependencies reachable from the scanned packages, each sorted by name */
+    List<int[]> declaredCycles() {
+        return sorted(Cycles.of(scanned.stream().toArray(), source -> rules.get(source).allowed()));
+    }
 
-    private class DependenciesCollector {
-        Set<String> primary;
-        Set<String> all;
-        List<Entry<String, String>> invalid = new ArrayList<>();
-
-        DependenciesCollector(String source) {
-            scanDependencies(source);
-            if (all != null)
-                primary = new HashSet<>(all);
-            while (source.contains(".")) {
-                source = source.substring(0, source.lastIndexOf('.'));
-                scanDependencies(source);
-            }
-        }
+    /** The cycles in the used dependencies, except for those that are all within one of the declared cycles */
+    List<int[]> actualCycles(List<int[]> declaredCycles) {
+        List<int[]> cycles = Cycles.of(scanned.stream().toArray(), used());
+
+        int[] declaredCycle = new int[rules.packages.size()];
+        for (int i = 0; i < declaredCycles.size(); i++)
+            for (int member : declaredCycles.get(i))
+                declaredCycle[member] = i + 1;
+        cycles.removeIf(cycle -> declaredCycle[cycle[0]] != 0
+            && Arrays.stream(cycle).allMatch(member -> declaredCycle[member] == declaredCycle[cycle[0]]));
+        return sorted(cycles);
+    }
 
-        private void scanDependencies(String source) {
-            PackageElement element = elements.getPackageElement(source);
-            if (element == null)
-                return;
-            AllowDependenciesOn annotation = element.getAnnotation(AllowDependenciesOn.class);
-            if (annotation != null) {
-                if (all == null)
-                    all = new HashSet<>();
-                all.addAll(resolveDependencies(annotation, element));
-            }
-        }
+    /** The shortest paths of used dependencies from the scanned packages to the targets they must not reach */
+    List<int[]> forbiddenPaths() {
+        int[] sources = scanned.stream().filter(source -> rules.get(source).forbidden().length > 0).toArray();
+        if (sources.length == 0)
+            return emptyList();
+        Reachability reachability = new Reachability(rules.packages.size(), sources, used());
+        List<int[]> paths = new ArrayList<>();
+        for (int source : sources)
+            for (int target : rules.get(source).forbidden())
+                if (reachability.reaches(source, target))
+                    paths.add(reachability.path(source, target));
+        return paths;
+    }
 
-        private List<String> resolveDependencies(AllowDependenciesOn annotation, PackageElement source) {
-            List<String> allowed = new ArrayList<>();
-            for (String target : annotation.value()) {
-                if (target.isEmpty())
-                    continue;
-                PackageElement targetElement = elements.getPackageElement(target);
-                if (targetElement == null) {
-                    invalid.add(new SimpleEntry<>(source.getQualifiedName().toString(), target));
-                } else {
-                    allowed.add(targetElement.getQualifiedName().toString());
-                }
-            }
-            return allowed;
-        }
+    /** The targets of the used dependencies of every package, laid out in one array */
+    private IntFunction<int[]> used() {
+        int size = rules.packages.size();
+        int[] offsets = new int[size + 1];
+        for (Dependency dependency : dependencies)
+            if (dependency.used)
+                offsets[dependency.source + 1]++;
+        for (int i = 0; i < size; i++)
+            offsets[i + 1] += offsets[i];
+        int[] targets = new int[offsets[size]];
+        int[] next = Arrays.copyOf(offsets, size);
+        for (Dependency dependency : dependencies)
+            if (dependency.used)
+                targets[next[dependency.source]++] = dependency.target;
+        return source -> (source < size) ? Arrays.copyOfRange(targets, offsets[source], offsets[source + 1]) : null;
+    }
+
+    private List<int[]> sorted(List<int[]> cycles) {
+        for (int i = 0; i < cycles.size(); i++)
+            cycles.set(i, Arrays.stream(cycles.get(i)).boxed()
+                .sorted((left, right) -> rules.packages.name(left).compareTo(rules.packages.name(right)))
+                .mapToInt(Integer::intValue).toArray());
+        return cycles;
+    }
+
+    /** The ids of the packages without rules */
+    Stream<Integer> missing() { return missingDependencies.stream(); }
+
+    Stream<Dependency> stream() { return dependencies.stream(); }
+
+    int size() { return dependencies.size(); }
 
-        boolean isPrimary(String target) { return primary != null && primary.contains(target); }
+    /** The dependencies of the source package */
+    Stream<Dependency> from(int source) {
+        return dependencies.stream().filter(dependency -> dependency.source == source);
     }
 }
@@ -1,16 +1,15 @@
 package com.github.t1.pdap;
 
+import com.github.t1.pdap.Symbols.Overloads;
 import com.sun.tools.javac.code.Attribute.Compound;
 import com.sun.tools.javac.code.Symbol;
 import com.sun.tools.javac.code.Symbol.ClassSymbol;
 import com.sun.tools.javac.code.Symbol.MethodSymbol;
-import com.sun.tools.javac.code.Symbol.VarSymbol;
+import com.sun.tools.javac.code.Symbol.PackageSymbol;
 import com.sun.tools.javac.code.Type;
 import com.sun.tools.javac.code.Type.ArrayType;
-import com.sun.tools.javac.code.Type.ClassType;
 import com.sun.tools.javac.code.Type.TypeVar;
 import com.sun.tools.javac.code.Type.WildcardType;
-import com.sun.tools.javac.model.FilteredMemberList;
 import com.sun.tools.javac.model.JavacElements;
 import com.sun.tools.javac.tree.JCTree;
 import com.sun.tools.javac.tree.JCTree.JCAnnotation;
@@ -20,7 +19,6 @@ import com.sun.tools.javac.tree.JCTree.JCExpression;
 import com.sun.tools.javac.tree.JCTree.JCFieldAccess;
 import com.sun.tools.javac.tree.JCTree.JCIdent;
 import com.sun.tools.javac.tree.JCTree.JCImport;
-import com.sun.tools.javac.tree.JCTree.JCLiteral;
 import com.sun.tools.javac.tree.JCTree.JCMethodDecl;
 import com.sun.tools.javac.tree.JCTree.JCMethodInvocation;
 import com.sun.tools.javac.tree.JCTree.JCNewClass;
@@ -28,300 +26,381 @@ import com.sun.tools.javac.tree.JCTree.JCTypeApply;
 import com.sun.tools.javac.tree.JCTree.JCTypeCast;
 import com.sun.tools.javac.tree.JCTree.JCTypeParameter;
 import com.sun.tools.javac.tree.JCTree.JCVariableDecl;
+import com.sun.tools.javac.tree.TreeInfo;
 import com.sun.tools.javac.tree.TreeScanner;
 import com.sun.tools.javac.util.List;
 import com.sun.tools.javac.util.Name;
-import com.sun.tools.javac.util.Pair;
 
 import javax.lang.model.element.Element;
-import javax.lang.model.element.PackageElement;
-import javax.lang.model.util.Elements;
+import javax.lang.model.type.PrimitiveType;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.Stack;
-import java.util.stream.IntStream;
 
+import static com.github.t1.pdap.Stats.Counter.FIND_METHOD;
+import static com.github.t1.pdap.Stats.Counter.RESOLVE;
+import static com.sun.tools.javac.tree.JCTree.Tag.SELECT;
+
+/**
+ * Collects the dependencies of all top level types in one compilation unit, so every source file is scanned only once,
+ * even when it contains several top level types.
+ */
 class DependenciesCollector {
+    private final Symbols symbols;
     private final JavacElements elements;
-    private final ClassSymbol classSymbol;
+    private final PackageTable packages;
     private final JCCompilationUnit compilationUnit;
+    /** The types imported by simple name */
+    private final Map<Name, ClassSymbol> imports = new HashMap<>();
 
-    /** The imports that could not be found as dependencies */
-    final Set<String> extraImports = new HashSet<>();
-    /** The dependencies found mapped to the first element that uses it */
-    final Map<String, Element> dependencies = new HashMap<>();
+    /** The {@link PackageTable} ids of the imports that could not be found as dependencies */
+    final Set<Integer> extraImports = new HashSet<>();
+    /** The {@link PackageTable} ids of the dependencies found per top level type, mapped to the first element that uses it */
+    final Map<ClassSymbol, Map<Integer, Element>> dependencies = new LinkedHashMap<>();
 
-    DependenciesCollector(Elements elements, Element classElement) {
-        this.elements = (JavacElements) elements;
-        this.classSymbol = (ClassSymbol) classElement;
-        this.compilationUnit = compilationUnit();
-        collect();
+    DependenciesCollector(Symbols symbols, JCCompilationUnit compilationUnit) {
+        this.symbols = symbols;
+        this.elements = symbols.elements;
+        this.packages = symbols.packages;
+        this.compilationUnit = compilationUnit;
+        try (Events.Duration ignored = Events.INSTANCE.compilationUnit(compilationUnit.getSourceFile().getName())) {
+            indexImports();
+            collect();
+        }
     }
 
-    private JCCompilationUnit compilationUnit() {
-        Pair<JCTree, JCCompilationUnit> tree = elements.getTreeAndTopLevel(classSymbol, null, null);
-        if (tree == null || tree.snd == null)
-            return null;
-        return tree.snd;
+    private void indexImports() {
+        for (JCImport i : compilationUnit.getImports()) {
+            JCFieldAccess qualifiedIdentifier = (JCFieldAccess) i.getQualifiedIdentifier();
+            Symbol symbol = i.isStatic() ? ((JCFieldAccess) qualifiedIdentifier.selected).sym : qualifiedIdentifier.sym;
+            if (symbol != null)
+                imports.putIfAbsent(qualifiedIdentifier.name, (ClassSymbol) symbol);
+        }
     }
 
     private void collect() {
-        if (compilationUnit == null)
-            return;
-        compilationUnit.accept(new TreeScanner() {
-            private boolean ignoreIdentifiers = false;
-            private Stack<Symbol> currentMember = new Stack<>();
+        compilationUnit.accept(new Visitor());
+        Integer javaLang = packages.id("java.lang");
+        dependencies.forEach((type, typeDependencies) -> {
+            typeDependencies.remove(symbols.packageId(type));
+            typeDependencies.remove(javaLang);
+            extraImports.removeAll(typeDependencies.keySet());
+        });
+    }
 
-            private Symbol currentMember() { return currentMember.peek(); }
+    /**
+     * Visits every node of the compilation unit, so it should allocate next to nothing per node:
+     * the members we are in are a plain array, the package ids of the symbols are cached by identity,
+     * we dispatch on the tree tags, and we walk javac lists by their tails instead of iterators.
+     */
+    private class Visitor extends TreeScanner {
+        private boolean ignoreIdentifiers = false;
+        /** The fields and methods we are in, the innermost on top */
+        private Symbol[] members = new Symbol[16];
+        private int depth = 0;
+        /** The dependencies of the top level type we are in */
+        private Map<Integer, Element> current;
 
-            private String toString(Symbol symbol) {
-                return (isNullOrEmpty(symbol.owner)) ? symbol.name.toString() : toString(symbol.owner) + "." + symbol.name;
-            }
+        private void push(Symbol member) {
+            if (depth == members.length)
+                members = Arrays.copyOf(members, 2 * depth);
+            members[depth++] = member;
+        }
 
-            @Override public void visitImport(JCImport tree) {
-                JCFieldAccess fieldAccess = (JCFieldAccess) tree.getQualifiedIdentifier();
-                if (tree.staticImport)
-                    fieldAccess = (JCFieldAccess) fieldAccess.selected;
-                extraImports.add(toString(fieldAccess.sym.owner));
-                super.visitImport(tree);
-            }
+        private void pop() { members[--depth] = null; }
 
-            @Override public void visitClassDef(JCClassDecl classDecl) {
-                removeAnnotationImports(classDecl.sym);
-                if (classDecl.getExtendsClause() != null)
-                    addType(classDecl.getExtendsClause(), classDecl.sym);
-                for (JCExpression implementsClause : classDecl.getImplementsClause())
-                    addType(implementsClause, classDecl.sym);
-                for (JCTypeParameter typeParameter : classDecl.getTypeParameters())
-                    for (JCExpression bound : typeParameter.getBounds())
-                        addOwner(((JCIdent) bound).sym, classDecl.sym);
-                super.visitClassDef(classDecl);
-            }
+        private Symbol currentMember() { return members[depth - 1]; }
 
-            /** field */
-            @Override public void visitVarDef(JCVariableDecl variable) {
-                removeAnnotationImports(variable.sym);
-                addType(variable.getType(), variable.sym);
-                if (variable.sym == null) {
-                    super.visitVarDef(variable);
-                } else {
-                    this.currentMember.push(variable.sym);
-                    super.visitVarDef(variable);
-                    this.currentMember.pop();
-                }
+        @Override public void visitImport(JCImport tree) {
+            JCFieldAccess fieldAccess = (JCFieldAccess) tree.getQualifiedIdentifier();
+            if (tree.staticImport)
+                fieldAccess = (JCFieldAccess) fieldAccess.selected;
+            extraImports.add(symbols.packageId(fieldAccess.sym));
+            super.visitImport(tree);
+        }
+
+        @Override public void visitClassDef(JCClassDecl classDecl) {
+            if (classDecl.sym != null && classDecl.sym.owner instanceof PackageSymbol)
+                current = dependencies.computeIfAbsent(classDecl.sym, type -> new HashMap<>());
+            removeAnnotationImports(classDecl.sym);
+            if (classDecl.getExtendsClause() != null)
+                addType(classDecl.getExtendsClause(), classDecl.sym);
+            for (JCExpression implementsClause : classDecl.getImplementsClause())
+                addType(implementsClause, classDecl.sym);
+            for (JCTypeParameter typeParameter : classDecl.getTypeParameters())
+                for (JCExpression bound : typeParameter.getBounds())
+                    addPackageOf(((JCIdent) bound).sym, classDecl.sym);
+            super.visitClassDef(classDecl);
+        }
+
+        /** field */
+        @Override public void visitVarDef(JCVariableDecl variable) {
+            removeAnnotationImports(variable.sym);
+            addType(variable.getType(), variable.sym);
+            if (variable.sym == null) {
+                super.visitVarDef(variable);
+            } else {
+                push(variable.sym);
+                super.visitVarDef(variable);
+                pop();
             }
+        }
 
-            @Override public void visitIdent(JCIdent identifier) {
-                if (!currentMember.isEmpty() && !ignoreIdentifiers) {
-                    ClassSymbol targetSymbol = resolve(identifier.getName());
-                    if (targetSymbol != null) {
-                        addOwner(targetSymbol, currentMember());
-                    }
+        @Override public void visitIdent(JCIdent identifier) {
+            if (depth > 0 && !ignoreIdentifiers) {
+                ClassSymbol targetSymbol = resolve(identifier.getName());
+                if (targetSymbol != null) {
+                    addPackageOf(targetSymbol, currentMember());
                 }
-                super.visitIdent(identifier);
             }
+            super.visitIdent(identifier);
+        }
 
-            @Override public void visitAnnotation(JCAnnotation jcAnnotation) {
-                ignoreIdentifiers = true;
-                super.visitAnnotation(jcAnnotation);
-                ignoreIdentifiers = false;
-            }
+        @Override public void visitAnnotation(JCAnnotation jcAnnotation) {
+            ignoreIdentifiers = true;
+            super.visitAnnotation(jcAnnotation);
+            ignoreIdentifiers = false;
+        }
 
-            @Override public void visitMethodDef(JCMethodDecl method) {
-                JCTree returnType = method.getReturnType();
-                if (returnType != null) {
-                    if (returnType instanceof JCFieldAccess) {
-                        addOwner(((JCFieldAccess) returnType).sym, method.sym);
-                    } else if (returnType instanceof JCTypeApply) {
-                        for (JCExpression typeArgument : ((JCTypeApply) returnType).getTypeArguments()) {
-                            addOwner(((JCIdent) typeArgument).sym, method.sym);
-                        }
-                    } else if (returnType instanceof JCIdent) {
-                        JCIdent identifier = (JCIdent) returnType;
-                        ClassSymbol targetSymbol = resolve(identifier.getName());
-                        if (targetSymbol != null) {
-                            addOwner(targetSymbol, method.sym);
-                        }
-                    }
+        @Override public void visitMethodDef(JCMethodDecl method) {
+            JCTree returnType = method.getReturnType();
+            if (returnType != null) {
+                switch (returnType.getTag()) {
+                    case SELECT:
+                        addPackageOf(((JCFieldAccess) returnType).sym, method.sym);
+                        break;
+                    case TYPEAPPLY:
+                        for (List<JCExpression> arg = ((JCTypeApply) returnType).getTypeArguments(); arg.nonEmpty(); arg = arg.tail)
+                            addPackageOf(((JCIdent) arg.head).sym, method.sym);
+                        break;
+                    case IDENT:
+                        ClassSymbol targetSymbol = resolve(((JCIdent) returnType).getName());
+                        if (targetSymbol != null)
+                            addPackageOf(targetSymbol, method.sym);
+                        break;
+                    default:
+                        break;
                 }
-                this.currentMember.push(method.sym);
-                super.visitMethodDef(method);
-                this.currentMember.pop();
             }
+            push(method.sym);
+            super.visitMethodDef(method);
+            pop();
+        }
 
-            @Override public void visitNewClass(JCNewClass tree) {
-                if (tree.getIdentifier() instanceof JCFieldAccess) {
-                    JCFieldAccess identifier = (JCFieldAccess) tree.getIdentifier();
-                    addName(((JCIdent) identifier.selected).name.toString(), currentMember());
-                } else if (tree.getIdentifier() instanceof JCIdent) {
-                    JCIdent identifier = (JCIdent) tree.getIdentifier();
-                    ClassSymbol targetSymbol = resolve(identifier.getName());
-                    if (targetSymbol != null) {
-                        addOwner(targetSymbol, currentMember());
-                    }
-                }
-                super.visitNewClass(tree);
+        @Override public void visitNewClass(JCNewClass tree) {
+            JCExpression identifier = tree.getIdentifier();
+            switch (identifier.getTag()) {
+                case SELECT:
+                    addName(packages.id(((JCIdent) ((JCFieldAccess) identifier).selected).name), currentMember());
+                    break;
+                case IDENT:
+                    ClassSymbol targetSymbol = resolve(((JCIdent) identifier).getName());
+                    if (targetSymbol != null)
+                        addPackageOf(targetSymbol, currentMember());
+                    break;
+                default:
+                    break;
             }
+            super.visitNewClass(tree);
+        }
 
-            @Override public void visitApply(JCMethodInvocation methodInvocation) {
-                JCExpression methodSelect = methodInvocation.getMethodSelect();
-                if (methodSelect instanceof JCFieldAccess) {
-                    JCFieldAccess fieldAccess = (JCFieldAccess) methodSelect;
-                    if (fieldAccess.selected instanceof JCNewClass) {
-                        JCNewClass selected = (JCNewClass) fieldAccess.selected;
-                        JCIdent identifier = (JCIdent) selected.getIdentifier();
-                        ClassSymbol targetSymbol = resolve(identifier.name);
-                        MethodSymbol method = findMethod(targetSymbol, fieldAccess.name, methodInvocation.getArguments());
-                        if (method != null && method.getReturnType() != null) {
-                            PackageElement packageElement = elements.getPackageOf(method.getReturnType().tsym);
-                            addName(packageElement.getQualifiedName().toString(), currentMember());
-                        }
-                    } else if (fieldAccess.selected instanceof JCIdent) {
-                        JCIdent identifier = (JCIdent) fieldAccess.selected;
-                        ClassSymbol targetSymbol = resolve(identifier.name);
-                        addMethodOwner(methodInvocation, fieldAccess, targetSymbol);
-                    } else if (fieldAccess.selected instanceof JCFieldAccess) {
-                        JCFieldAccess selected = (JCFieldAccess) fieldAccess.selected;
-                        ClassSymbol targetElement = elements.getTypeElement(selected.toString());
+        @Override public void visitApply(JCMethodInvocation methodInvocation) {
+            JCExpression methodSelect = methodInvocation.getMethodSelect();
+            if (methodSelect.hasTag(SELECT)) {
+                JCFieldAccess fieldAccess = (JCFieldAccess) methodSelect;
+                switch (fieldAccess.selected.getTag()) {
+                    case NEWCLASS:
+                        JCIdent identifier = (JCIdent) ((JCNewClass) fieldAccess.selected).getIdentifier();
+                        MethodSymbol method = findMethod(resolve(identifier.name), fieldAccess.name, methodInvocation.getArguments());
+                        if (method != null && method.getReturnType() != null)
+                            addPackageOf(method.getReturnType().tsym, currentMember());
+                        break;
+                    case IDENT:
+                        addMethodOwner(methodInvocation, fieldAccess, resolve(((JCIdent) fieldAccess.selected).name));
+                        break;
+                    case SELECT:
+                        // we only need the name of the selected type, and the pretty printer would be a lot of garbage
+                        Name typeName = TreeInfo.fullName(fieldAccess.selected);
+                        ClassSymbol targetElement = (typeName == null) ? null : elements.getTypeElement(typeName);
                         if (targetElement != null)
                             addMethodOwner(methodInvocation, fieldAccess, targetElement);
-                    }
+                        break;
+                    default:
+                        break;
                 }
-                super.visitApply(methodInvocation);
             }
+            super.visitApply(methodInvocation);
+        }
 
 
-            private void removeAnnotationImports(Symbol symbol) {
-                if (symbol != null && symbol.getMetadata() != null)
-                    for (Compound attribute : symbol.getMetadata().getDeclarationAttributes())
-                        extraImports.remove(toString(((ClassType) attribute.getAnnotationType()).tsym.owner));
-            }
+        private void removeAnnotationImports(Symbol symbol) {
+            if (symbol != null && symbol.getMetadata() != null)
+                for (List<Compound> attribute = symbol.getMetadata().getDeclarationAttributes(); attribute.nonEmpty(); attribute = attribute.tail)
+                    extraImports.remove(symbols.packageId(attribute.head.type.tsym));
+        }
 
-            private void addType(JCTree type, Element element) {
-                if (type instanceof JCIdent) {
+        private void addType(JCTree type, Element element) {
+            switch (type.getTag()) {
+                case IDENT:
                     JCIdent ident = (JCIdent) type;
-                    if (ident.sym != null) {
-                        dependencies.putIfAbsent(toString(ident.sym.owner), element);
-                    }
-                } else if (type instanceof JCFieldAccess) {
+                    if (ident.sym != null)
+                        addPackageOf(ident.sym, element);
+                    break;
+                case SELECT:
                     JCFieldAccess fieldAccess = (JCFieldAccess) type;
-                    if (fieldAccess.sym == null) {
-                        addName(((JCIdent) fieldAccess.selected).getName().toString(), element);
-                    } else {
-                        addOwner(fieldAccess.sym, fieldAccess.sym);
-                    }
-                } else if (type instanceof JCTypeApply) { // external type
+                    if (fieldAccess.sym == null)
+                        addName(packages.id(((JCIdent) fieldAccess.selected).getName()), element);
+                    else
+                        addPackageOf(fieldAccess.sym, element);
+                    break;
+                case TYPEAPPLY: // external type
                     JCTypeApply typeApply = (JCTypeApply) type;
-                    addOwner(typeApply.type.tsym, element);
-                    for (Type typeParameter : typeApply.type.getTypeArguments()) {
-                        if (typeParameter instanceof ClassType)
-                            addOwner(((ClassType) typeParameter).tsym, element);
-                        if (typeParameter instanceof WildcardType) {
-                            if (typeParameter.isExtendsBound() && ((WildcardType) typeParameter).getExtendsBound() != null)
-                                addOwner(((WildcardType) typeParameter).getExtendsBound().tsym, element);
-                            if (typeParameter.isSuperBound() && ((WildcardType) typeParameter).getSuperBound() != null)
-                                addOwner(((WildcardType) typeParameter).getSuperBound().tsym, element);
-                        }
-                    }
-                }
+                    addPackageOf(typeApply.type.tsym, element);
+                    for (List<Type> arg = typeApply.type.getTypeArguments(); arg.nonEmpty(); arg = arg.tail)
+                        addTypeArgument(arg.head, element);
+                    break;
+                default:
+                    break;
             }
+        }
 
-            private void addOwner(Symbol symbol, Element element) { addName(toString(symbol.owner), element); }
+        private void addTypeArgument(Type typeArgument, Element element) {
+            switch (typeArgument.getTag()) {
+                case CLASS:
+                    addPackageOf(typeArgument.tsym, element);
+                    break;
+                case WILDCARD:
+                    WildcardType wildcard = (WildcardType) typeArgument;
+                    if (wildcard.isExtendsBound() && wildcard.getExtendsBound() != null)
+                        addPackageOf(wildcard.getExtendsBound().tsym, element);
+                    if (wildcard.isSuperBound() && wildcard.getSuperBound() != null)
+                        addPackageOf(wildcard.getSuperBound().tsym, element);
+                    break;
+                default:
+                    break;
+            }
+        }
 
-            private void addName(String name, Element element) { dependencies.putIfAbsent(name, element); }
+        private void addPackageOf(Symbol symbol, Element element) { addName(symbols.packageId(symbol), element); }
 
-            private boolean isNullOrEmpty(Symbol symbol) { return symbol == null || symbol.name.isEmpty(); }
+        private void addName(Integer id, Element element) { current.putIfAbsent(id, element); }
 
-            private void addMethodOwner(JCMethodInvocation methodInvocation, JCFieldAccess fieldAccess, ClassSymbol targetSymbol) {
-                MethodSymbol method = findMethod(targetSymbol, fieldAccess.name, methodInvocation.getArguments());
-                if (method != null) {
-                    PackageElement packageElement = elements.getPackageOf(method);
-                    addName(packageElement.getQualifiedName().toString(), currentMember());
-                }
-            }
+        private void addMethodOwner(JCMethodInvocation methodInvocation, JCFieldAccess fieldAccess, ClassSymbol targetSymbol) {
+            MethodSymbol method = findMethod(targetSymbol, fieldAccess.name, methodInvocation.getArguments());
+            if (method != null)
+                addPackageOf(method, currentMember());
+        }
+    }
 
-            private MethodSymbol findMethod(ClassSymbol typeSymbol, Name methodName, List<JCExpression> arguments) {
-                FilteredMemberList members = elements.getAllMembers(typeSymbol);
-                for (Symbol member : members) {
-                    if (member instanceof MethodSymbol) {
-                        MethodSymbol method = (MethodSymbol) member;
-                        if (method.name.contentEquals(methodName) && argMatch(arguments, method.getParameters(), method.isVarArgs())) {
-                            return method;
-                        }
-                    }
-                }
-                return null;
-            }
+    MethodSymbol findMethod(ClassSymbol typeSymbol, Name methodName, List<JCExpression> arguments) {
+        if (typeSymbol == null)
+            return null;
+        symbols.stats.count(FIND_METHOD);
+        Overloads overloads = symbols.methods(typeSymbol, methodName);
+        if (overloads == null)
+            return null;
+        int arity = arguments.size();
+        java.util.List<MethodSymbol> fixedArity = overloads.fixedArity(arity);
+        if (overloads.size() == 1 && fixedArity.size() == 1)
+            return fixedArity.get(0);
+        // like javac: first try without subtyping, boxing, and varargs, and then widen the match
+        MethodSymbol method = match(fixedArity, arguments, false, true);
+        if (method == null)
+            method = match(fixedArity, arguments, false, false);
+        if (method == null)
+            method = match(overloads.varArgs(), arguments, true, true);
+        if (method == null)
+            method = match(overloads.varArgs(), arguments, true, false);
+        return method;
+    }
 
-            private boolean argMatch(List<JCExpression> actuals, List<VarSymbol> expecteds, boolean varArgs) {
-                if (expecteds.size() == actuals.size() || varArgs && actuals.size() >= expecteds.size() - 1) {
-                    return IntStream.range(0, actuals.size()).allMatch(i -> {
-                        boolean isLastExpected = i >= expecteds.size() - 1;
-                        int expectedIndex = isLastExpected ? expecteds.size() - 1 : i;
-                        return argMatch(expecteds.get(expectedIndex).type, actuals.get(i), varArgs && isLastExpected);
-                    });
-                } else {
-                    return false;
-                }
-            }
+    /** The first of these methods that matches the arguments; indexed, as an iterator would be garbage */
+    private MethodSymbol match(java.util.List<MethodSymbol> methods, List<JCExpression> arguments, boolean varArgs, boolean exact) {
+        for (int i = 0; i < methods.size(); i++) {
+            List<Type> parameterTypes = methods.get(i).type.getParameterTypes();
+            if (varArgs && arguments.size() < parameterTypes.size() - 1)
+                continue;
+            if (argMatch(arguments, parameterTypes, varArgs, exact))
+                return methods.get(i);
+        }
+        return null;
+    }
 
-            private boolean argMatch(Type expected, JCExpression actual, boolean varArgs) {
-                if (varArgs)
-                    expected = ((ArrayType) expected).elemtype;
-                if (expected instanceof TypeVar)
-                    expected = ((TypeVar) expected).bound;
-                String expectedString = expected.isPrimitive() ? boxed(expected).getName() : expected.asElement().toString();
-                String actualString = (actual instanceof JCLiteral) ? ((JCLiteral) actual).value.getClass().getName()
-                    : (actual instanceof JCTypeCast) ? resolve(((JCIdent) ((JCTypeCast) actual).getType()).name).className()
-                    : resolve(((JCIdent) ((JCNewClass) actual).getIdentifier()).name).className();
-                return expectedString.equals(actualString);
-            }
+    private boolean argMatch(List<JCExpression> actuals, List<Type> expecteds, boolean varArgs, boolean exact) {
+        for (List<JCExpression> actual = actuals; actual.nonEmpty(); actual = actual.tail) {
+            boolean isLastExpected = expecteds.tail.isEmpty();
+            if (!argMatch(expecteds.head, actual.head, varArgs && isLastExpected, exact))
+                return false;
+            if (!isLastExpected)
+                expecteds = expecteds.tail;
+        }
+        return true;
+    }
 
-            private Class<?> boxed(Type type) {
-                switch (type.getTag()) {
-                    case BYTE:
-                        return Byte.class;
-                    case CHAR:
-                        return Character.class;
-                    case SHORT:
-                        return Short.class;
-                    case LONG:
-                        return Long.class;
-                    case FLOAT:
-                        return Float.class;
-                    case INT:
-                        return Integer.class;
-                    case DOUBLE:
-                        return Double.class;
-                    case BOOLEAN:
-                        return Boolean.class;
-                    case VOID:
-                        return Void.class;
-                }
-                throw new UnsupportedOperationException("unboxable type " + type);
-            }
+    private boolean argMatch(Type expected, JCExpression actual, boolean varArgs, boolean exact) {
+        if (varArgs)
+            expected = ((ArrayType) expected).elemtype;
+        if (expected instanceof TypeVar)
+            expected = expected.getUpperBound();
+        ClassSymbol actualType = typeOf(actual);
+        if (actualType == null) // we don't know, so we don't exclude it
+            return !exact;
+        if (exact) {
+            Element expectedType = expected.isPrimitive() ? symbols.types.boxedClass((PrimitiveType) expected) : expected.tsym;
+            return actualType == expectedType;
+        }
+        return symbols.types.isAssignable(symbols.types.erasure(actualType.asType()), symbols.types.erasure(expected));
+    }
 
-            private ClassSymbol resolve(Name name) {
-                return compilationUnit.getImports().stream()
-                    .filter(i -> ((JCFieldAccess) i.getQualifiedIdentifier()).name.contentEquals(name))
-                    .map(i -> (ClassSymbol) (
-                            i.isStatic()
-                                ? ((JCFieldAccess) ((JCFieldAccess) i.getQualifiedIdentifier()).selected).sym
-                                : ((JCFieldAccess) i.getQualifiedIdentifier()).sym
-                        )
-                    )
-                    .findAny().orElseGet(() -> {
-                        ClassSymbol typeElement = elements.getTypeElement(name);
-                        if (typeElement == null)
-                            typeElement = elements.getTypeElement("java.lang." + name);
-                        return typeElement;
-                    });
-            }
-        });
-        dependencies.remove(classSymbol.packge().name.toString());
-        dependencies.remove("java.lang");
-        extraImports.removeAll(dependencies.keySet());
+    /** The type of this argument expression, boxed if it's primitive, or null if we can't tell without attributing it */
+    private ClassSymbol typeOf(JCExpression expression) {
+        switch (expression.getKind()) {
+            case INT_LITERAL:
+                return type(Integer.class);
+            case LONG_LITERAL:
+                return type(Long.class);
+            case FLOAT_LITERAL:
+                return type(Float.class);
+            case DOUBLE_LITERAL:
+                return type(Double.class);
+            case BOOLEAN_LITERAL:
+                return type(Boolean.class);
+            case CHAR_LITERAL:
+                return type(Character.class);
+            case STRING_LITERAL:
+                return type(String.class);
+            case TYPE_CAST:
+                return resolveType(((JCTypeCast) expression).getType());
+            case NEW_CLASS:
+                return resolveType(((JCNewClass) expression).getIdentifier());
+            default:
+                return null;
+        }
+    }
+
+    private ClassSymbol resolveType(JCTree type) {
+        switch (type.getKind()) {
+            case IDENTIFIER:
+                return resolve(((JCIdent) type).name);
+            case PARAMETERIZED_TYPE:
+                return resolveType(((JCTypeApply) type).getType());
+            default:
+                return null;
+        }
+    }
+
+    private ClassSymbol type(Class<?> type) { return symbols.type(type); }
+
+    ClassSymbol resolve(Name name) {
+        symbols.stats.count(RESOLVE);
+        ClassSymbol symbol = imports.get(name);
+        if (symbol != null)
+            return symbol;
+        symbol = symbols.unimported(name);
+        Events.INSTANCE.nameFallback(name, (symbol == null) ? null : symbol.getQualifiedName());
+        return symbol;
     }
 }
@@ -0,0 +1,79 @@
+package com.github.t1.pdap;
+
+import javax.annotation.processing.Filer;
+import javax.tools.FileObject;
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.NoSuchFileException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static javax.tools.StandardLocation.CLASS_OUTPUT;
+
+/**
+ * The target packages of every type of the previous compilations, stored in the class output,
+ * so incremental builds only have to scan the types that changed, but can still check the whole graph.
+ * One line per type: the qualified type name, a <code>=</code>, and the target packages separated by spaces.
+ */
+class DependencyStore {
+    static final String RESOURCE = "META-INF/pdap/dependencies";
+
+    static DependencyStore load(Filer filer) {
+        DependencyStore store = new DependencyStore();
+        try {
+            FileObject resource = filer.getResource(CLASS_OUTPUT, "", RESOURCE);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(resource.openInputStream(), UTF_8))) {
+                store.read(reader);
+            }
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            // first build
+        } catch (IOException e) {
+            throw new UncheckedIOException("can't read " + RESOURCE, e);
+        }
+        return store;
+    }
+
+    private final Map<String, Set<String>> targets = new TreeMap<>();
+
+    private void read(BufferedReader reader) throws IOException {
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            int separator = line.indexOf('=');
+            if (separator < 0)
+                continue;
+            Set<String> typeTargets = new TreeSet<>();
+            String targetList = line.substring(separator + 1).trim();
+            if (!targetList.isEmpty())
+                typeTargets.addAll(asList(targetList.split(" ")));
+            targets.put(line.substring(0, separator), typeTargets);
+        }
+    }
+
+    /** The qualified names of all stored types */
+    Set<String> types() { return targets.keySet(); }
+
+    /** The stored target packages of this type */
+    Set<String> targets(String type) { return targets.get(type); }
+
+    void put(String type, Collection<String> typeTargets) { targets.put(type, new TreeSet<>(typeTargets)); }
+
+    void remove(String type) { targets.remove(type); }
+
+    void save(Filer filer) {
+        try (Writer writer = new OutputStreamWriter(filer.createResource(CLASS_OUTPUT, "", RESOURCE).openOutputStream(), UTF_8)) {
+            for (Map.Entry<String, Set<String>> entry : targets.entrySet())
+                writer.write(entry.getKey() + "=" + String.join(" ", entry.getValue()) + "\n");
+        } catch (IOException e) {
+            throw new UncheckedIOException("can't write " + RESOURCE, e);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.t1.pdap;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing hash map from {@link PackageTable#edge(int, int) packed edges} to non-negative ints,
+ * e.g. list indexes, without boxing or entry objects.
+ */
+class EdgeIndex {
+    /** Package ids are never negative, so this is never a real edge */
+    private static final long FREE = -1L;
+
+    private long[] keys;
+    private int[] values;
+    private int size = 0;
+
+    EdgeIndex() { allocate(16); }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, FREE);
+    }
+
+    /** The value of this edge or -1, if there is none */
+    int get(long edge) {
+        int slot = slot(edge);
+        return (keys[slot] == FREE) ? -1 : values[slot];
+    }
+
+    boolean contains(long edge) { return keys[slot(edge)] != FREE; }
+
+    void put(long edge, int value) {
+        int slot = slot(edge);
+        if (keys[slot] == FREE) {
+            if (2 * (size + 1) > keys.length) {
+                grow();
+                slot = slot(edge);
+            }
+            keys[slot] = edge;
+            size++;
+        }
+        values[slot] = value;
+    }
+
+    int size() { return size; }
+
+    /** The slot of this edge, or the free slot where it would go */
+    private int slot(long edge) {
+        int mask = keys.length - 1;
+        int slot = hash(edge) & mask;
+        while (keys[slot] != FREE && keys[slot] != edge)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private static int hash(long edge) {
+        long hash = edge * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(2 * oldKeys.length);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
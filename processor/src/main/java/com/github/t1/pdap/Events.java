@@ -0,0 +1,48 @@
+package com.github.t1.pdap;
+
+import javax.tools.Diagnostic.Kind;
+
+/**
+ * Tells the Java Flight Recorder what the processor is doing, so a recording of a build shows which files and packages
+ * take how long. JFR is available since JDK 8u262, so we load the {@link JfrEvents} only if it's there; otherwise,
+ * or if a recording doesn't enable our events, this costs next to nothing.
+ */
+abstract class Events {
+    static final Events INSTANCE = create();
+
+    private static Events create() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            return (Events) Class.forName("com.github.t1.pdap.JfrEvents").newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new Events() {
+                @Override Duration compilationUnit(String file) { return NOTHING; }
+
+                @Override Duration packageScan(String packageName) { return NOTHING; }
+
+                @Override void nameFallback(CharSequence name, CharSequence resolved) {}
+
+                @Override void diagnostic(Kind kind, String message, String location) {}
+            };
+        }
+    }
+
+    /** Something that takes time, ending when it's closed */
+    interface Duration extends AutoCloseable {
+        @Override void close();
+    }
+
+    static final Duration NOTHING = () -> {};
+
+    /** Collecting the dependencies of one source file */
+    abstract Duration compilationUnit(String file);
+
+    /** Looking up the rules of a package and adding its allowed dependencies */
+    abstract Duration packageScan(String packageName);
+
+    /** A simple name that is not imported, so we had to look for it in the default package and <code>java.lang</code> */
+    abstract void nameFallback(CharSequence name, CharSequence resolved);
+
+    /** @param location e.g. <code>/source/Source.java:6:20</code>, or null */
+    abstract void diagnostic(Kind kind, String message, String location);
+}
@@ -0,0 +1,10 @@
+package com.github.t1.pdap;
+
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.PACKAGE;
+
+@Target(PACKAGE)
+public @interface ForbidTransitiveDependenciesOn {
+    String[] value();
+}
@@ -0,0 +1,196 @@
+package com.github.t1.pdap;
+
+import com.github.t1.pdap.Dependencies.Dependency;
+
+import javax.annotation.processing.Filer;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static javax.tools.StandardLocation.CLASS_OUTPUT;
+
+/**
+ * Writes the package dependency graph to the class output, enabled with the <code>pdap.graph</code> option,
+ * e.g. <code>-Apdap.graph=dot,json,graphml</code>. The edges are written one by one, so we never build the whole file.
+ * Pattern targets are rules, not packages, so they are left out.
+ */
+class GraphExport {
+    static final String OPTION = "pdap.graph";
+
+    enum Format {
+        DOT("dot") {
+            @Override void start(Writer out) throws IOException {
+                out.write("digraph dependencies {\n");
+            }
+
+            @Override void node(Writer out, String name, boolean first) throws IOException {
+                out.write("    \"" + name + "\";\n");
+            }
+
+            @Override void edges(Writer out) {}
+
+            @Override void edge(Writer out, String source, String target, Dependency dependency, boolean first) throws IOException {
+                out.write("    \"" + source + "\" -> \"" + target + "\" [type=" + type(dependency) + ", used=" + dependency.used
+                    + style(dependency) + "];\n");
+            }
+
+            private String style(Dependency dependency) {
+                switch (dependency.type) {
+                    case FORBIDDEN:
+                    case INVALID:
+                        return ", color=red";
+                    case CYCLE:
+                        return ", color=orange";
+                    default:
+                        return dependency.used ? "" : ", style=dashed";
+                }
+            }
+
+            @Override void end(Writer out) throws IOException {
+                out.write("}\n");
+            }
+        },
+
+        JSON("json") {
+            @Override void start(Writer out) throws IOException {
+                out.write("{\n  \"nodes\": [");
+            }
+
+            @Override void node(Writer out, String name, boolean first) throws IOException {
+                out.write((first ? "\n" : ",\n") + "    \"" + name + "\"");
+            }
+
+            @Override void edges(Writer out) throws IOException {
+                out.write("\n  ],\n  \"edges\": [");
+            }
+
+            @Override void edge(Writer out, String source, String target, Dependency dependency, boolean first) throws IOException {
+                out.write((first ? "\n" : ",\n") + "    {\"source\": \"" + source + "\", \"target\": \"" + target
+                    + "\", \"type\": \"" + type(dependency) + "\", \"used\": " + dependency.used + "}");
+            }
+
+            @Override void end(Writer out) throws IOException {
+                out.write("\n  ]\n}\n");
+            }
+        },
+
+        GRAPHML("graphml") {
+            @Override void start(Writer out) throws IOException {
+                out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\">\n"
+                    + "  <key id=\"type\" for=\"edge\" attr.name=\"type\" attr.type=\"string\"/>\n"
+                    + "  <key id=\"used\" for=\"edge\" attr.name=\"used\" attr.type=\"boolean\"/>\n"
+                    + "  <graph id=\"dependencies\" edgedefault=\"directed\">\n");
+            }
+
+            @Override void node(Writer out, String name, boolean first) throws IOException {
+                out.write("    <node id=\"" + name + "\"/>\n");
+            }
+
+            @Override void edges(Writer out) {}
+
+            @Override void edge(Writer out, String source, String target, Dependency dependency, boolean first) throws IOException {
+                out.write("    <edge source=\"" + source + "\" target=\"" + target + "\">"
+                    + "<data key=\"type\">" + type(dependency) + "</data>"
+                    + "<data key=\"used\">" + dependency.used + "</data></edge>\n");
+            }
+
+            @Override void end(Writer out) throws IOException {
+                out.write("  </graph>\n</graphml>\n");
+            }
+        };
+
+        /** The file extension */
+        final String extension;
+
+        Format(String extension) { this.extension = extension; }
+
+        String resource() { return "META-INF/pdap/dependencies." + extension; }
+
+        abstract void start(Writer out) throws IOException;
+
+        abstract void node(Writer out, String name, boolean first) throws IOException;
+
+        /** Between the nodes and the edges */
+        abstract void edges(Writer out) throws IOException;
+
+        abstract void edge(Writer out, String source, String target, Dependency dependency, boolean first) throws IOException;
+
+        abstract void end(Writer out) throws IOException;
+
+        private static String type(Dependency dependency) { return dependency.type.name().toLowerCase(Locale.ROOT); }
+    }
+
+    /** @return null if the option is not set */
+    static GraphExport of(Map<String, String> options) {
+        String value = options.get(OPTION);
+        if (value == null)
+            return null;
+        Set<Format> formats = EnumSet.noneOf(Format.class);
+        for (String format : value.split(",")) {
+            if (format.trim().isEmpty())
+                continue;
+            try {
+                formats.add(Format.valueOf(format.trim().toUpperCase(Locale.ROOT)));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("unknown " + OPTION + " format [" + format.trim() + "]");
+            }
+        }
+        return new GraphExport(formats.isEmpty() ? EnumSet.of(Format.DOT) : formats);
+    }
+
+    private final Set<Format> formats;
+
+    private GraphExport(Set<Format> formats) { this.formats = formats; }
+
+    void write(Filer filer, Dependencies dependencies, PackageTable packages) {
+        BitSet nodes = nodes(dependencies, packages);
+        for (Format format : formats) {
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                filer.createResource(CLASS_OUTPUT, "", format.resource()).openOutputStream(), UTF_8))) {
+                write(format, out, dependencies, packages, nodes);
+            } catch (IOException e) {
+                throw new UncheckedIOException("can't write " + format.resource(), e);
+            }
+        }
+    }
+
+    private static BitSet nodes(Dependencies dependencies, PackageTable packages) {
+        BitSet nodes = new BitSet(packages.size());
+        dependencies.stream()
+            .filter(dependency -> isPackage(packages, dependency))
+            .forEach(dependency -> {
+                nodes.set(dependency.source);
+                nodes.set(dependency.target);
+            });
+        return nodes;
+    }
+
+    private static boolean isPackage(PackageTable packages, Dependency dependency) {
+        return !PackagePatterns.isPattern(packages.name(dependency.target));
+    }
+
+    private static void write(Format format, Writer out, Dependencies dependencies, PackageTable packages, BitSet nodes) throws IOException {
+        format.start(out);
+        int firstNode = nodes.nextSetBit(0);
+        for (int id = firstNode; id >= 0; id = nodes.nextSetBit(id + 1))
+            format.node(out, packages.name(id), id == firstNode);
+        format.edges(out);
+        boolean first = true;
+        for (Dependency dependency : (Iterable<Dependency>) dependencies.stream()::iterator) {
+            if (!isPackage(packages, dependency))
+                continue;
+            format.edge(out, packages.name(dependency.source), packages.name(dependency.target), dependency, first);
+            first = false;
+        }
+        format.end(out);
+    }
+}
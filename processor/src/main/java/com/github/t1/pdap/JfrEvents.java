@@ -0,0 +1,86 @@
+package com.github.t1.pdap;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import javax.tools.Diagnostic.Kind;
+
+/** Only loaded by {@link Events} if JFR is available */
+class JfrEvents extends Events {
+    private static final String CATEGORY = "Package Dependencies";
+
+    @Name("com.github.t1.pdap.CompilationUnit")
+    @Label("Compilation Unit")
+    @Description("Collecting the dependencies of one source file")
+    @Category(CATEGORY)
+    static class CompilationUnitEvent extends Event {
+        @Label("File") String file;
+    }
+
+    @Name("com.github.t1.pdap.PackageScan")
+    @Label("Package Scan")
+    @Description("Looking up the rules of a package and adding its allowed dependencies")
+    @Category(CATEGORY)
+    static class PackageScanEvent extends Event {
+        @Label("Package") String packageName;
+    }
+
+    @Name("com.github.t1.pdap.NameFallback")
+    @Label("Name Fallback")
+    @Description("A simple name that is not imported, looked up in the default package and java.lang")
+    @Category(CATEGORY)
+    static class NameFallbackEvent extends Event {
+        @Label("Name") String name;
+        @Label("Resolved") String resolved;
+    }
+
+    @Name("com.github.t1.pdap.Diagnostic")
+    @Label("Diagnostic")
+    @Description("An error, warning, or other message reported")
+    @Category(CATEGORY)
+    static class DiagnosticEvent extends Event {
+        @Label("Kind") String kind;
+        @Label("Message") String message;
+        @Label("Location") String location;
+    }
+
+    @Override Duration compilationUnit(String file) {
+        CompilationUnitEvent event = new CompilationUnitEvent();
+        if (!event.isEnabled())
+            return NOTHING;
+        event.file = file;
+        event.begin();
+        return event::commit;
+    }
+
+    @Override Duration packageScan(String packageName) {
+        PackageScanEvent event = new PackageScanEvent();
+        if (!event.isEnabled())
+            return NOTHING;
+        event.packageName = packageName;
+        event.begin();
+        return event::commit;
+    }
+
+    @Override void nameFallback(CharSequence name, CharSequence resolved) {
+        NameFallbackEvent event = new NameFallbackEvent();
+        if (!event.isEnabled())
+            return;
+        event.name = name.toString();
+        event.resolved = (resolved == null) ? null : resolved.toString();
+        event.commit();
+    }
+
+    @Override void diagnostic(Kind kind, String message, String location) {
+        DiagnosticEvent event = new DiagnosticEvent();
+        if (!event.isEnabled())
+            return;
+        event.kind = kind.name();
+        event.message = message;
+        event.location = location;
+        event.commit();
+    }
+}
@@ -0,0 +1,61 @@
+package com.github.t1.pdap;
+
+import com.sun.tools.javac.tree.EndPosTable;
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.util.JCDiagnostic.DiagnosticPosition;
+import com.sun.tools.javac.util.Log;
+
+import javax.tools.Diagnostic.Kind;
+import javax.tools.JavaFileObject;
+
+import static com.github.t1.pdap.Locations.isKnown;
+
+/** Prints messages like the <code>JavacMessager</code> does, but at a {@link Locations location} we recorded */
+class LocationMessager {
+    private final Locations locations;
+
+    LocationMessager(Locations locations) { this.locations = locations; }
+
+    void print(Log log, Kind kind, String message, int location) {
+        DiagnosticPosition position = !isKnown(location) ? null : new Position(location);
+        JavaFileObject oldSource = !isKnown(location) ? null : log.useSource(locations.file(location));
+        try {
+            switch (kind) {
+                case ERROR:
+                    boolean multipleErrors = log.multipleErrors;
+                    log.multipleErrors = true;
+                    try {
+                        log.error(position, "proc.messager", message);
+                    } finally {
+                        log.multipleErrors = multipleErrors;
+                    }
+                    break;
+                case WARNING:
+                case MANDATORY_WARNING:
+                    log.warning(position, "proc.messager", message);
+                    break;
+                default:
+                    log.note(position, "proc.messager", message);
+                    break;
+            }
+        } finally {
+            if (isKnown(location))
+                log.useSource(oldSource);
+        }
+    }
+
+    private class Position implements DiagnosticPosition {
+        private final int location;
+
+        private Position(int location) { this.location = location; }
+
+        /** We don't keep the trees */
+        @Override public JCTree getTree() { return null; }
+
+        @Override public int getStartPosition() { return locations.start(location); }
+
+        @Override public int getPreferredPosition() { return locations.preferred(location); }
+
+        @Override public int getEndPosition(EndPosTable endPosTable) { return locations.end(location); }
+    }
+}
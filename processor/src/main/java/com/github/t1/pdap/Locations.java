@@ -0,0 +1,115 @@
+package com.github.t1.pdap;
+
+import com.sun.tools.javac.model.JavacElements;
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.JCTree.JCCompilationUnit;
+import com.sun.tools.javac.tree.TreeInfo;
+import com.sun.tools.javac.util.Pair;
+
+import javax.lang.model.element.Element;
+import javax.tools.JavaFileObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The source positions we may report at, recorded while javac still has the trees,
+ * so we don't have to keep the elements, and through them the trees and compilation units, until we report.
+ * Every location is a few ints in one array, and the source files are interned.
+ * The {@link LocationMessager} prints at them, so we can use the locations without javac, e.g. in the {@link BytecodeChecker}.
+ */
+class Locations {
+    /** No location recorded, e.g. report at the package instead */
+    static final int NONE = -1;
+    /** The element is not in a source file, so report without a position */
+    static final int NOWHERE = -2;
+
+    private static final int FILE = 0, START = 1, PREFERRED = 2, END = 3, LINE = 4, COLUMN = 5, SIZE = 6;
+
+    private final Map<JavaFileObject, Integer> fileIds = new HashMap<>();
+    private final List<JavaFileObject> files = new ArrayList<>();
+    private int[] data = new int[64 * SIZE];
+    private int size = 0;
+
+    /** The location of the declaration of this element, {@link #NONE} for null, or {@link #NOWHERE} if it's not in a source file */
+    int of(JavacElements elements, Element element) {
+        if (element == null)
+            return NONE;
+        Pair<JCTree, JCCompilationUnit> tree = elements.getTreeAndTopLevel(element, null, null);
+        return (tree == null) ? NOWHERE : add(tree.fst, tree.snd);
+    }
+
+    int add(JCTree tree, JCCompilationUnit compilationUnit) {
+        JavaFileObject file = compilationUnit.getSourceFile();
+        if (file == null)
+            return NOWHERE;
+        int offset = add(file);
+        data[offset + START] = TreeInfo.getStartPos(tree);
+        data[offset + PREFERRED] = tree.pos;
+        data[offset + END] = TreeInfo.getEndPos(tree, compilationUnit.endPositions);
+        data[offset + LINE] = (int) compilationUnit.getLineMap().getLineNumber(tree.pos);
+        data[offset + COLUMN] = (int) compilationUnit.getLineMap().getColumnNumber(tree.pos);
+        return size++;
+    }
+
+    /** A range in a file that javac doesn't parse, e.g. the {@link RulesFile}, reported at its start */
+    int of(JavaFileObject file, int start, int end, int line) {
+        int offset = add(file);
+        data[offset + START] = start;
+        data[offset + PREFERRED] = start;
+        data[offset + END] = end;
+        data[offset + LINE] = line;
+        data[offset + COLUMN] = 1;
+        return size++;
+    }
+
+    /** A file without source positions, e.g. a class file */
+    int of(JavaFileObject file) {
+        add(file);
+        return size++;
+    }
+
+    /** @return the offset of the new location in the data */
+    private int add(JavaFileObject file) {
+        Integer fileId = fileIds.get(file);
+        if (fileId == null) {
+            fileId = files.size();
+            files.add(file);
+            fileIds.put(file, fileId);
+        }
+        if ((size + 1) * SIZE > data.length)
+            data = Arrays.copyOf(data, 2 * data.length);
+        int offset = size * SIZE;
+        Arrays.fill(data, offset, offset + SIZE, 0);
+        data[offset + FILE] = fileId;
+        return offset;
+    }
+
+    int size() { return size; }
+
+    JavaFileObject file(int location) { return files.get(get(location, FILE)); }
+
+    int line(int location) { return get(location, LINE); }
+
+    int column(int location) { return get(location, COLUMN); }
+
+    int start(int location) { return get(location, START); }
+
+    int preferred(int location) { return get(location, PREFERRED); }
+
+    int end(int location) { return get(location, END); }
+
+    private int get(int location, int field) { return data[location * SIZE + field]; }
+
+    /** Is this a location in a source file, i.e. neither {@link #NONE} nor {@link #NOWHERE} */
+    static boolean isKnown(int location) { return location >= 0; }
+
+    /** E.g. <code>/source/Source.java:6:20</code>, just the file if it has no lines, or null if it's not {@link #isKnown(int) known} */
+    String toString(int location) {
+        if (!isKnown(location))
+            return null;
+        return file(location).getName() + ((line(location) == 0) ? "" : ":" + line(location) + ":" + column(location));
+    }
+}
@@ -1,112 +1,416 @@
 package com.github.t1.pdap;
 
-import com.github.t1.pdap.Dependencies.Dependency;
+import com.github.t1.pdap.Stats.Retained;
+import com.sun.tools.javac.code.Symbol.ClassSymbol;
+import com.sun.tools.javac.processing.JavacProcessingEnvironment;
+import com.sun.tools.javac.tree.JCTree.JCCompilationUnit;
+import com.sun.tools.javac.util.Log;
+import com.sun.tools.javac.util.Options;
 
+import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.RoundEnvironment;
 import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
 import javax.lang.model.element.Element;
-import javax.lang.model.element.Name;
 import javax.lang.model.element.PackageElement;
 import javax.lang.model.element.TypeElement;
 import javax.tools.Diagnostic.Kind;
+import javax.tools.JavaFileManager;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import static java.util.stream.Collectors.joining;
+import static com.github.t1.pdap.Stats.Counter.ANALYSIS_CACHE_HIT;
+import static com.github.t1.pdap.Stats.Counter.COMPILATION_UNITS;
+import static com.github.t1.pdap.Stats.Counter.EDGES;
+import static com.github.t1.pdap.Stats.Counter.PACKAGES;
+import static com.github.t1.pdap.Stats.Counter.SKIPPED_TYPES;
+import static com.github.t1.pdap.Stats.Counter.TYPES;
+import static com.github.t1.pdap.Stats.Phase.CLASSIFY;
+import static com.github.t1.pdap.Stats.Phase.COLLECT;
+import static com.github.t1.pdap.Stats.Phase.REPORT;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singleton;
 import static javax.tools.Diagnostic.Kind.ERROR;
 import static javax.tools.Diagnostic.Kind.WARNING;
+import static java.util.stream.Collectors.joining;
 
 @SupportedAnnotationTypes("com.github.t1.pdap.*")
+@SupportedOptions({AnalysisCache.DIRECTORY_OPTION, AnalysisCache.SIZE_OPTION, Stats.OPTION, GraphExport.OPTION,
+    DecisionLog.OPTION, RulesFile.OPTION, PackageDependenciesAnnotationProcessor.INFERRED_OPTION})
 public class PackageDependenciesAnnotationProcessor extends AbstractAnnotationProcessor {
-    private final Map<Name, Map<String, Element>> actualDependencies = new HashMap<>();
+    /** Also classify the dependencies of packages without rules, e.g. to find the actual cycles through them */
+    static final String INFERRED_OPTION = "pdap.inferred";
+
+    /**
+     * The dependencies per top level type of each source file of the current package, as it may contain several top level types.
+     * All top level types of a source file are in the same package, so we clear this after each package.
+     */
+    private final Map<JCCompilationUnit, Map<ClassSymbol, Map<Integer, Element>>> collected = new HashMap<>();
+    /** The ids of the source packages of all rounds, in the order we found them */
+    private final List<Integer> sources = new ArrayList<>();
+    private final BitSet sourceIds = new BitSet();
+    /**
+     * The actual dependencies of all rounds as {@link PackageTable#edge(int, int) edges} in the order we found them,
+     * and the {@link Locations location} of the first element that requires each;
+     * we classify and report them when processing is over
+     */
+    private long[] actualEdges = new long[64];
+    private int[] actualLocations = new int[64];
+    private int actualCount = 0;
+    private final EdgeIndex actualIndex = new EdgeIndex();
+    private final Locations locations = new Locations();
+    private PackageRules rules;
+    /** Optional */
+    private RulesFile rulesFile;
+    /** With a rules file, also packages without annotations have rules, so we have to see all types */
+    private boolean allTypes;
+    private Symbols symbols;
+    private Reporter reporter;
+    /** The dependencies of the types of the previous compilations, so incremental builds can check the whole graph */
+    private DependencyStore store;
+    /** Optional */
+    private AnalysisCache cache;
+    private Stats stats;
+    /** Do we need the inferred dependencies of the packages without rules, or can we skip them */
+    private boolean inferred;
+    /** Optional */
+    private GraphExport graphExport;
+    /** Optional */
+    private DecisionLog decisionLog;
+    private boolean firstRound = true;
+    /** The {@link PackageDependenciesPlugin} does the job */
+    private boolean disabled;
+
+    @Override public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        this.stats = Stats.of(processingEnv.getOptions());
+        this.symbols = new Symbols(getElementUtils(), getTypeUtils(), stats);
+        this.disabled = PackageDependenciesPlugin.isActive(processingEnv);
+        this.rulesFile = disabled ? null : rulesFile();
+        this.allTypes = rulesFile != null || processingEnv.getOptions().containsKey(RulesFile.OPTION);
+        PackageRules.Lookup lookup = PackageRules.elementLookup(getElementUtils());
+        this.rules = new PackageRules((rulesFile == null) ? lookup : rulesFile.lookup(lookup), symbols.packages, stats);
+        this.rules.setComplete(false);
+        this.reporter = new Reporter(rules, locations) {
+            @Override int packageLocation(int id) {
+                String name = symbols.packages.name(id);
+                int location = locations.of(symbols.elements, symbols.elements.getPackageElement(name));
+                return (rulesFile == null) ? location : rulesFile.packageLocation(locations, name, location);
+            }
+
+            /** Without javac's own environment, e.g. in Gradle, we can only print without the position */
+            @Override void print(Kind kind, String message, int location) {
+                if (processingEnv instanceof JavacProcessingEnvironment)
+                    new LocationMessager(locations).print(Log.instance(((JavacProcessingEnvironment) processingEnv).getContext()), kind, message, location);
+                else
+                    processingEnv.getMessager().printMessage(kind, message);
+            }
+        };
+        if (disabled)
+            debug(() -> "disabled, as the package dependencies are checked by the plugin");
+        else {
+            this.store = DependencyStore.load(processingEnv.getFiler());
+            try {
+                this.cache = AnalysisCache.of(processingEnv.getOptions(), classPath(), classOutput());
+            } catch (IllegalArgumentException e) {
+                error(e.getMessage());
+            }
+            try {
+                this.graphExport = GraphExport.of(processingEnv.getOptions());
+            } catch (IllegalArgumentException e) {
+                error(e.getMessage());
+            }
+            try {
+                this.decisionLog = DecisionLog.of(processingEnv.getOptions());
+            } catch (UncheckedIOException e) {
+                error(e.getMessage() + ": " + e.getCause());
+            }
+            this.inferred = processingEnv.getOptions().containsKey(INFERRED_OPTION) || graphExport != null || decisionLog != null;
+        }
+    }
+
+    @Override public Set<String> getSupportedAnnotationTypes() {
+        return allTypes ? singleton("*") : super.getSupportedAnnotationTypes();
+    }
+
+    /** When we see {@link #allTypes all types}, we must not claim the annotations of other processors */
+    private boolean claims(Set<? extends TypeElement> annotations) {
+        return annotations.stream().allMatch(annotation -> annotation.getQualifiedName().toString().startsWith("com.github.t1.pdap."));
+    }
+
+    /** Build tools like Gradle may wrap javac's environment, so we can only use the filer */
+    private RulesFile rulesFile() {
+        String path = processingEnv.getOptions().get(RulesFile.OPTION);
+        if (processingEnv instanceof JavacProcessingEnvironment)
+            return RulesFile.of(path, ((JavacProcessingEnvironment) processingEnv).getContext().get(JavaFileManager.class));
+        return RulesFile.of(path, processingEnv.getFiler());
+    }
+
+    private String classPath() {
+        String classPath = null;
+        if (processingEnv instanceof JavacProcessingEnvironment)
+            classPath = Options.instance(((JavacProcessingEnvironment) processingEnv).getContext()).get("-classpath");
+        return (classPath == null) ? System.getProperty("java.class.path") : classPath;
+    }
+
+    /** The directory we write the classes to, or null if we don't know */
+    private Path classOutput() {
+        String classOutput = null;
+        if (processingEnv instanceof JavacProcessingEnvironment)
+            classOutput = Options.instance(((JavacProcessingEnvironment) processingEnv).getContext()).get("-d");
+        return (classOutput == null) ? null : Paths.get(classOutput);
+    }
 
     @Override
     public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
-        if (roundEnv.processingOver())
+        if (disabled)
+            return claims(annotations);
+        if (roundEnv.processingOver()) {
+            rules.setComplete(true);
+            Dependencies dependencies = classifyAndReport();
+            store.save(processingEnv.getFiler());
+            if (cache != null)
+                cache.evict();
+            if (graphExport != null)
+                graphExport.write(processingEnv.getFiler(), dependencies, symbols.packages);
+            if (decisionLog != null)
+                closeDecisionLog();
+            if (stats.isEnabled()) {
+                note(stats.summary());
+                stats.write(processingEnv.getFiler());
+            }
             return false;
+        }
         debug(() -> "process " + annotations + ": " + roundEnv.getRootElements());
-        Dependencies dependencies = new Dependencies(getElementUtils());
-        for (Element element : roundEnv.getRootElements()) {
-            if (!isType(element))
-                continue;
-            processType(dependencies, (TypeElement) element);
+        Map<PackageElement, List<TypeElement>> typesByPackage = typesByPackage(roundEnv);
+        if (firstRound) {
+            if (cache != null)
+                cache.sign(compilationUnits(typesByPackage));
+            addStoredTypes(typesByPackage);
         }
-        report(dependencies);
-        return true;
+        firstRound = false;
+        if (!inferred)
+            inferred = typesByPackage.keySet().stream().anyMatch(this::isForbiddingTransitive);
+        typesByPackage.forEach(this::collectPackage);
+        stats.retained(Retained.METHOD_TABLES, symbols.methodTables());
+        stats.retained(Retained.SIMPLE_NAMES, symbols.simpleNames());
+        symbols.endRound();
+        return claims(annotations);
+    }
+
+    private void closeDecisionLog() {
+        try {
+            decisionLog.close();
+        } catch (UncheckedIOException e) {
+            error(e.getMessage() + ": " + e.getCause());
+        }
+    }
+
+    /** Classify the actual dependencies of all rounds by the rules, and report them */
+    private Dependencies classifyAndReport() {
+        if (rulesFile != null)
+            rulesFile.errors(locations, (message, location) -> reporter.emit(ERROR, message, location));
+        Dependencies dependencies = new Dependencies(rules);
+        stats.enter(CLASSIFY);
+        try {
+            classify(dependencies);
+        } finally {
+            stats.exit();
+        }
+        stats.enter(REPORT);
+        try {
+            reporter.report(dependencies);
+        } finally {
+            stats.exit();
+        }
+        count(dependencies);
+        return dependencies;
+    }
+
+    private void count(Dependencies dependencies) {
+        stats.count(EDGES, dependencies.size());
+        stats.retained(Retained.LOCATIONS, locations.size());
+        stats.retained(Retained.PACKAGES, symbols.packages.size());
+        stats.retained(Retained.RULES, rules.size());
+    }
+
+    private Map<PackageElement, List<TypeElement>> typesByPackage(RoundEnvironment roundEnv) {
+        Map<PackageElement, List<TypeElement>> typesByPackage = new LinkedHashMap<>();
+        for (Element element : roundEnv.getRootElements())
+            if (isType(element))
+                add(typesByPackage, (TypeElement) element);
+        return typesByPackage;
+    }
+
+    private Set<JCCompilationUnit> compilationUnits(Map<PackageElement, List<TypeElement>> typesByPackage) {
+        Set<JCCompilationUnit> compilationUnits = new LinkedHashSet<>();
+        for (List<TypeElement> types : typesByPackage.values())
+            for (TypeElement type : types)
+                compilationUnits.add(symbols.compilationUnit(type));
+        compilationUnits.remove(null);
+        return compilationUnits;
+    }
+
+    /** The stored types that are not compiled this time; and forget those that don't exist any more */
+    private void addStoredTypes(Map<PackageElement, List<TypeElement>> typesByPackage) {
+        for (String name : new ArrayList<>(store.types())) {
+            TypeElement typeElement = getElementUtils().getTypeElement(name);
+            if (typeElement == null) {
+                debug(() -> "forget stored dependencies of removed type " + name);
+                store.remove(name);
+            } else if (symbols.compilationUnit(typeElement) == null) {
+                add(typesByPackage, typeElement);
+            }
+        }
+    }
+
+    private void add(Map<PackageElement, List<TypeElement>> typesByPackage, TypeElement typeElement) {
+        PackageElement packageElement = getElementUtils().getPackageOf(typeElement);
+        typesByPackage.computeIfAbsent(packageElement, p -> new ArrayList<>()).add(typeElement);
     }
 
     private boolean isType(Element element) {
         return element.getKind().isClass() || element.getKind().isInterface();
     }
 
-    private void processType(Dependencies dependencies, TypeElement typeElement) {
-        PackageElement packageElement = getElementUtils().getPackageOf(typeElement);
-        String source = packageElement.getQualifiedName().toString();
-        dependencies.scan(source);
-        actualDependencies(typeElement).forEach((target, element) -> dependencies.use((element == null) ? typeElement : element, source, target));
-        debug(() -> "type " + typeElement + " has dependencies on " + dependencies.stream()
-            .filter(dependency -> dependency.source.equals(source))
-            .map(dependency -> dependency.target + " (" + dependency.type.name().toLowerCase() + ")")
-            .collect(joining("], [", "[", "]")));
+    /** Paths of forbidden transitive dependencies can go through packages without rules */
+    private boolean isForbiddingTransitive(PackageElement packageElement) {
+        return rules.get(symbols.packages.id(packageElement.getQualifiedName())).forbidden().length > 0;
     }
 
-    private Map<String, Element> actualDependencies(TypeElement element) {
-        return actualDependencies.computeIfAbsent(element.getQualifiedName(), name -> {
+    private void collectPackage(PackageElement packageElement, List<TypeElement> types) {
+        stats.count(TYPES, types.size());
+        int source = symbols.packages.id(packageElement.getQualifiedName());
+        if (!sourceIds.get(source)) {
+            stats.count(PACKAGES);
+            sourceIds.set(source);
+            sources.add(source);
+        }
+        if (!inferred && !rules.get(source).isChecked()) {
+            // all dependencies would be inferred, and we only warn about the missing annotation, not even about the imports
+            debug(() -> "skip package without rules " + packageElement.getQualifiedName());
+            stats.count(SKIPPED_TYPES, types.size());
+            for (TypeElement typeElement : types)
+                if (symbols.compilationUnit(typeElement) != null) // the stored dependencies would be outdated
+                    store.remove(typeElement.getQualifiedName().toString());
+            return;
+        }
+        for (TypeElement typeElement : types)
+            actualDependencies(typeElement).forEach((target, element) ->
+                addActual(source, target, (element == null) ? typeElement : element));
+        stats.retained(Retained.COMPILATION_UNITS, collected.size());
+        collected.clear();
+    }
+
+    /** Remember the location of the element, as we don't keep the elements until we report */
+    private void addActual(int source, int target, Element element) {
+        long edge = PackageTable.edge(source, target);
+        if (actualIndex.contains(edge))
+            return;
+        if (actualCount == actualEdges.length) {
+            actualEdges = Arrays.copyOf(actualEdges, 2 * actualCount);
+            actualLocations = Arrays.copyOf(actualLocations, 2 * actualCount);
+        }
+        actualIndex.put(edge, actualCount);
+        actualEdges[actualCount] = edge;
+        actualLocations[actualCount] = locations.of(symbols.elements, element);
+        actualCount++;
+    }
+
+    private void classify(Dependencies dependencies) {
+        for (int source : sources)
+            dependencies.scan(source);
+        for (int i = 0; i < actualCount; i++) {
+            int source = PackageTable.source(actualEdges[i]), target = PackageTable.target(actualEdges[i]);
+            dependencies.use(actualLocations[i], source, target);
+            if (decisionLog != null)
+                decisionLog.log(dependencies.get(source, target), symbols.packages, locations);
+        }
+        if (isDebugEnabled())
+            for (int source : sources)
+                debug(() -> "package " + symbols.packages.name(source) + " has dependencies on " + dependencies.from(source)
+                    .map(dependency -> symbols.packages.name(dependency.target) + " (" + dependency.type.name().toLowerCase() + ")")
+                    .collect(joining("], [", "[", "]")));
+    }
+
+    private Map<Integer, Element> actualDependencies(TypeElement element) {
+        String name = element.getQualifiedName().toString();
+        JCCompilationUnit compilationUnit = symbols.compilationUnit(element);
+        if (compilationUnit == null)
+            return stored(name, element);
+        Map<Integer, Element> dependencies = collected.computeIfAbsent(compilationUnit, this::collect).getOrDefault(element, emptyMap());
+        store.put(name, names(dependencies.keySet()));
+        return dependencies;
+    }
+
+    /** We can only report the dependencies of a type that is not compiled this time at the type itself */
+    private Map<Integer, Element> stored(String name, TypeElement element) {
+        Set<String> targets = store.targets(name);
+        if (targets == null)
+            return emptyMap();
+        Map<Integer, Element> dependencies = new LinkedHashMap<>();
+        for (String target : targets)
+            dependencies.put(symbols.packages.id(target), element);
+        return dependencies;
+    }
+
+    private List<String> names(Set<Integer> packages) {
+        List<String> names = new ArrayList<>(packages.size());
+        for (int id : packages)
+            names.add(symbols.packages.name(id));
+        return names;
+    }
+
+    private Map<ClassSymbol, Map<Integer, Element>> collect(JCCompilationUnit compilationUnit) {
+        stats.count(COMPILATION_UNITS);
+        stats.enter(COLLECT);
+        try {
+            return collectOrUseCache(compilationUnit);
+        } finally {
+            stats.exit();
+        }
+    }
+
+    private Map<ClassSymbol, Map<Integer, Element>> collectOrUseCache(JCCompilationUnit compilationUnit) {
+        String key = (cache == null) ? null : cache.key(compilationUnit);
+        AnalysisCache.Entry entry = (key == null) ? null : cache.get(key);
+        if (entry == null) {
             DependenciesCollector collector;
             try {
-                collector = new DependenciesCollector(getElementUtils(), element);
+                collector = new DependenciesCollector(symbols, compilationUnit);
             } catch (Exception e) {
-                throw new RuntimeException("can't collect dependencies from " + element + ":\n  " + e
+                throw new RuntimeException("can't collect dependencies from " + compilationUnit.getSourceFile().getName() + ":\n  " + e
                     + Arrays.stream(e.getStackTrace()).map(StackTraceElement::toString).collect(joining("\n  ")), e);
             }
-            for (String extraImport : collector.extraImports)
-                warning("Import [" + extraImport + "] not found as dependency", element);
+            if (key != null)
+                cache.put(key, new AnalysisCache.Entry(collector.dependencies, collector.extraImports, symbols.packages));
+            warnAboutExtraImports(collector.dependencies, names(collector.extraImports));
             return collector.dependencies;
-        });
-    }
-
-    private void report(Dependencies dependencies) {
-        dependencies.stream().forEach(dependency -> {
-            Message message = message(dependency);
-            if (message != null)
-                print(message.kind, message.message + " [" + dependency.target + "]", message.element);
-        });
-        dependencies.missing().forEach(it -> warning("no @AllowDependenciesOn annotation", it));
-    }
-
-    private Message message(Dependency dependency) {
-        switch (dependency.type) {
-            case PRIMARY:
-                return (dependency.used) ? null : new Message(WARNING, "Unused dependency on", element(dependency));
-            case SECONDARY:
-                return null;
-            case INVALID:
-                return new Message(ERROR, "Invalid @AllowDependenciesOn: unknown package", element(dependency));
-            case FORBIDDEN:
-                return new Message(ERROR, "Forbidden dependency on", element(dependency));
-            case INFERRED:
-                return null;
-            case CYCLE:
-                return new Message(ERROR, "Cyclic dependency declared on", element(dependency));
         }
-        throw new UnsupportedOperationException();
+        debug(() -> "use cached dependencies of " + compilationUnit.getSourceFile().getName());
+        stats.count(ANALYSIS_CACHE_HIT);
+        Map<ClassSymbol, Map<Integer, Element>> dependencies = entry.dependencies(symbols.elements, symbols.packages);
+        warnAboutExtraImports(dependencies, entry.extraImports);
+        return dependencies;
     }
 
-    private Element element(Dependency dependency) {
-        return (dependency.element == null) ? getElementUtils().getPackageElement(dependency.source) : dependency.element;
-    }
-
-    private class Message {
-        private final Kind kind;
-        private final String message;
-        private final Element element;
-
-        private Message(Kind kind, String message, Element element) {
-            this.kind = kind;
-            this.message = message;
-            this.element = element;
-        }
+    private void warnAboutExtraImports(Map<ClassSymbol, Map<Integer, Element>> dependencies, Collection<String> extraImports) {
+        if (dependencies.isEmpty() || extraImports.isEmpty())
+            return;
+        Element firstType = dependencies.keySet().iterator().next();
+        int location = locations.of(symbols.elements, firstType);
+        for (String extraImport : extraImports)
+            reporter.emit(WARNING, "Import [" + extraImport + "] not found as dependency", location);
     }
 }
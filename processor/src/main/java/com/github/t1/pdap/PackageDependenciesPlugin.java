@@ -0,0 +1,175 @@
+package com.github.t1.pdap;
+
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.Plugin;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+import com.sun.source.util.Trees;
+import com.sun.tools.javac.api.BasicJavacTask;
+import com.sun.tools.javac.comp.AttrContext;
+import com.sun.tools.javac.comp.CompileStates;
+import com.sun.tools.javac.comp.Env;
+import com.sun.tools.javac.comp.Todo;
+import com.sun.tools.javac.model.JavacElements;
+import com.sun.tools.javac.processing.JavacProcessingEnvironment;
+import com.sun.tools.javac.tree.JCTree.JCClassDecl;
+import com.sun.tools.javac.tree.JCTree.JCCompilationUnit;
+import com.sun.tools.javac.util.Context;
+import com.sun.tools.javac.util.Log;
+import com.sun.tools.javac.util.Options;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.sun.source.util.TaskEvent.Kind.ANALYZE;
+import static com.sun.tools.javac.comp.CompileStates.CompileState.FLOW;
+import static javax.tools.Diagnostic.Kind.ERROR;
+
+/**
+ * Checks the package dependencies as a javac plugin, i.e. with <code>-Xplugin:pdap</code>, instead of as an annotation processor.
+ * It runs after javac has attributed each type, so it can use the symbols javac has resolved,
+ * and it reports after the last type has been analyzed, or, since Java 9, at the end of the compilation, if javac stops analyzing early.
+ * The annotation processor steps aside when the plugin is active.
+ */
+public class PackageDependenciesPlugin implements Plugin {
+    static boolean isActive(ProcessingEnvironment processingEnv) {
+        return processingEnv instanceof JavacProcessingEnvironment
+            && ((JavacProcessingEnvironment) processingEnv).getContext().get(PackageDependenciesPlugin.class) != null;
+    }
+
+    @Override public String getName() { return "pdap"; }
+
+    @Override public void init(JavacTask task, String... args) {
+        ((BasicJavacTask) task).getContext().put(PackageDependenciesPlugin.class, this);
+        task.addTaskListener(new Listener(task, rulesFile(((BasicJavacTask) task).getContext())));
+    }
+
+    /** The plugin has no processor options, so we look for the <code>-Apdap.rules=...</code> in the compiler options */
+    private static RulesFile rulesFile(Context context) {
+        String prefix = "-A" + RulesFile.OPTION + "=";
+        String path = Options.instance(context).keySet().stream().filter(option -> option.startsWith(prefix))
+            .map(option -> option.substring(prefix.length())).findFirst().orElse(null);
+        return RulesFile.of(path, context.get(JavaFileManager.class));
+    }
+
+    private static class Listener implements TaskListener {
+        private final JavacTask task;
+        private final Trees trees;
+        /** Optional */
+        private final RulesFile rulesFile;
+
+        /** The number of types that javac has started but not finished to analyze */
+        private int analyzing = 0;
+        private boolean reported;
+        private final PackageTable packages = new PackageTable();
+        /** The dependencies found per source package id, mapped to the {@link Locations location} of the first element that uses it */
+        private final Map<Integer, Map<Integer, Integer>> actualDependencies = new LinkedHashMap<>();
+        /** Where the elements are that we may report on; javac lowers the trees after analyzing them, so we can't find them later */
+        private final Locations locations = new Locations();
+        /** The location of the package-info of every package id */
+        private final Map<Integer, Integer> packageLocations = new HashMap<>();
+        /** Like the annotation processor, we only check compilations that contain some rules */
+        private boolean annotated;
+
+        private Listener(JavacTask task, RulesFile rulesFile) {
+            this.task = task;
+            this.trees = Trees.instance(task);
+            this.rulesFile = rulesFile;
+            this.annotated = rulesFile != null;
+        }
+
+        @Override public void started(TaskEvent event) {
+            if (event.getKind() == ANALYZE)
+                analyzing++;
+        }
+
+        @Override public void finished(TaskEvent event) {
+            if (event.getKind().name().equals("COMPILATION")) { // since Java 9, e.g. after javac stopped analyzing because of an error
+                if (!packageLocations.isEmpty()) // i.e. javac has analyzed some types
+                    reportOnce();
+                return;
+            }
+            if (event.getKind() != ANALYZE)
+                return;
+            analyzing--;
+            JCCompilationUnit compilationUnit = (JCCompilationUnit) event.getCompilationUnit();
+            packageLocations.computeIfAbsent(packages.id(compilationUnit.packge.getQualifiedName()), id -> location(compilationUnit.packge));
+            if (compilationUnit.getSourceFile().isNameCompatible("package-info", JavaFileObject.Kind.SOURCE)
+                && (compilationUnit.packge.getAnnotation(AllowDependenciesOn.class) != null
+                    || compilationUnit.packge.getAnnotation(ForbidTransitiveDependenciesOn.class) != null))
+                annotated = true;
+            collect(event.getTypeElement());
+            if (isLast())
+                reportOnce();
+        }
+
+        /**
+         * Is no other type being analyzed and none left to analyze, i.e. every type still in the todo queue is already analyzed,
+         * e.g. as a dependency of another type. We can't count the todo queue in advance, as javac adds the types
+         * it compiles implicitly from the source path while analyzing, and some compile policies take all types off the queue first.
+         */
+        private boolean isLast() {
+            if (analyzing > 0)
+                return false;
+            Context context = ((BasicJavacTask) task).getContext(); // annotation processing rounds replace the context
+            CompileStates states = CompileStates.instance(context);
+            for (Env<AttrContext> env : Todo.instance(context))
+                if (!states.isDone(env, FLOW))
+                    return false;
+            return true;
+        }
+
+        private void reportOnce() {
+            if (reported || !annotated)
+                return;
+            reported = true;
+            report();
+        }
+
+        private void collect(TypeElement typeElement) {
+            if (typeElement == null)
+                return;
+            JCClassDecl classDecl = (JCClassDecl) trees.getTree(typeElement);
+            if (classDecl == null) // package-info
+                return;
+            int source = packages.id(task.getElements().getPackageOf(typeElement).getQualifiedName());
+            Map<Integer, Integer> packageDependencies = actualDependencies.computeIfAbsent(source, p -> new LinkedHashMap<>());
+            new AttributedDependenciesCollector(packages, classDecl).dependencies.forEach((target, element) -> {
+                if (!packageDependencies.containsKey(target))
+                    packageDependencies.put(target, location((element == null) ? typeElement : element));
+            });
+        }
+
+        private int location(Element element) { return locations.of((JavacElements) task.getElements(), element); }
+
+        private void report() {
+            PackageRules.Lookup lookup = PackageRules.elementLookup(task.getElements());
+            PackageRules rules = new PackageRules((rulesFile == null) ? lookup : rulesFile.lookup(lookup), packages, Stats.DISABLED);
+            Dependencies dependencies = new Dependencies(rules);
+            actualDependencies.forEach((source, packageDependencies) -> {
+                dependencies.scan(source);
+                packageDependencies.forEach((target, location) -> dependencies.use(location, source, target));
+            });
+            Reporter reporter = new Reporter(rules, locations) {
+                @Override int packageLocation(int id) {
+                    int location = packageLocations.getOrDefault(id, Locations.NONE);
+                    return (rulesFile == null) ? location : rulesFile.packageLocation(locations, packages.name(id), location);
+                }
+
+                @Override void print(Kind kind, String message, int location) {
+                    new LocationMessager(locations).print(Log.instance(((BasicJavacTask) task).getContext()), kind, message, location);
+                }
+            };
+            if (rulesFile != null)
+                rulesFile.errors(locations, (message, location) -> reporter.emit(ERROR, message, location));
+            reporter.report(dependencies);
+        }
+    }
+}
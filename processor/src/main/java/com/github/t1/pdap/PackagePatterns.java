@@ -0,0 +1,141 @@
+package com.github.t1.pdap;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The package patterns allowed for a package, compiled into one trie of name segments:
+ * a <code>*</code> segment matches exactly one segment, a <code>**</code> segment any number of segments, even none.
+ * Matching a package name walks its segments once, tracking the set of trie nodes reached so far,
+ * so it doesn't depend on the number of patterns.
+ */
+class PackagePatterns {
+    /** Is this target a pattern, i.e. does it contain a <code>*</code> */
+    static boolean isPattern(String target) { return target.indexOf('*') >= 0; }
+
+    /** Is every <code>*</code> in this pattern a complete segment */
+    static boolean isValid(String pattern) {
+        for (String segment : pattern.split("\\.", -1))
+            if (segment.isEmpty() || isPattern(segment) && !segment.equals("*") && !segment.equals("**"))
+                return false;
+        return true;
+    }
+
+    private static class TrieNode {
+        private final Map<String, TrieNode> children = new HashMap<>();
+        /** The <code>*</code> child */
+        private TrieNode single;
+        /** The <code>**</code> child */
+        private TrieNode any;
+        /** Is this a <code>**</code> node, i.e. it can consume any number of segments */
+        private final boolean loop;
+        /** The position of the pattern ending here in the order they have been added, or -1 */
+        private int order = -1;
+        /** The last match that reached this node, so we add it only once to the states */
+        private int generation = 0;
+
+        private TrieNode(boolean loop) { this.loop = loop; }
+    }
+
+    private final TrieNode root = new TrieNode(false);
+    /** The {@link PackageTable} ids of the patterns in the order they have been added */
+    private final List<Integer> ids = new ArrayList<>();
+    private final List<String> patterns = new ArrayList<>();
+    private int generation = 0;
+
+    /** Add all the patterns of the other patterns, after the ones already added */
+    void addAll(PackagePatterns other) {
+        for (int i = 0; i < other.patterns.size(); i++)
+            add(other.patterns.get(i), other.ids.get(i));
+    }
+
+    void add(String pattern, int id) {
+        if (ids.contains(id))
+            return;
+        TrieNode node = root;
+        for (String segment : pattern.split("\\.")) {
+            if (segment.equals("*")) {
+                if (node.single == null)
+                    node.single = new TrieNode(false);
+                node = node.single;
+            } else if (segment.equals("**")) {
+                if (node.any == null)
+                    node.any = new TrieNode(true);
+                node = node.any;
+            } else {
+                node = node.children.computeIfAbsent(segment, s -> new TrieNode(false));
+            }
+        }
+        node.order = ids.size();
+        ids.add(id);
+        patterns.add(pattern);
+    }
+
+    boolean isEmpty() { return ids.isEmpty(); }
+
+    /** The ids of all patterns */
+    List<Integer> ids() { return ids; }
+
+    /** The id of the first pattern added that matches the package name, or -1 if none matches */
+    int match(String packageName) {
+        int first = -1;
+        for (TrieNode state : states(packageName))
+            if (state.order >= 0 && (first < 0 || state.order < first))
+                first = state.order;
+        return (first < 0) ? -1 : ids.get(first);
+    }
+
+    /** The ids of all patterns that match the package name, in the order they have been added */
+    List<Integer> matchAll(String packageName) {
+        BitSet orders = new BitSet();
+        for (TrieNode state : states(packageName))
+            if (state.order >= 0)
+                orders.set(state.order);
+        List<Integer> out = new ArrayList<>(orders.cardinality());
+        for (int order = orders.nextSetBit(0); order >= 0; order = orders.nextSetBit(order + 1))
+            out.add(ids.get(order));
+        return out;
+    }
+
+    /** The trie nodes reached after the last segment of the package name */
+    private List<TrieNode> states(String packageName) {
+        List<TrieNode> states = new ArrayList<>();
+        List<TrieNode> next = new ArrayList<>();
+        generation++;
+        reach(root, states);
+        int start = 0;
+        while (start <= packageName.length() && !states.isEmpty()) {
+            int end = packageName.indexOf('.', start);
+            if (end < 0)
+                end = packageName.length();
+            String segment = packageName.substring(start, end);
+            generation++;
+            for (TrieNode state : states) {
+                TrieNode child = state.children.get(segment);
+                if (child != null)
+                    reach(child, next);
+                if (state.single != null)
+                    reach(state.single, next);
+                if (state.loop)
+                    reach(state, next);
+            }
+            List<TrieNode> reached = states;
+            states = next;
+            next = reached;
+            next.clear();
+            start = end + 1;
+        }
+        return states;
+    }
+
+    /** Add the node and, as a <code>**</code> can also match no segment at all, its <code>**</code> child */
+    private void reach(TrieNode node, List<TrieNode> states) {
+        for (; node != null && node.generation != generation; node = node.any) {
+            node.generation = generation;
+            states.add(node);
+        }
+    }
+}
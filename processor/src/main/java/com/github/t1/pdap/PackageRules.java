@@ -0,0 +1,280 @@
+package com.github.t1.pdap;
+
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.util.Elements;
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import static com.github.t1.pdap.Stats.Phase.RULES;
+import static java.util.Collections.emptyList;
+
+/**
+ * The tree of packages with their {@link AllowDependenciesOn} rules merged with those of their super packages.
+ * Every package is looked up and its annotation read only once per compilation, even if it doesn't exist,
+ * and the merged rules of a package are built from the already merged rules of its parent.
+ * Packages are addressed by their {@link PackageTable} id.
+ * <p>
+ * While the rules are not {@link #setComplete(boolean) complete}, e.g. during the annotation processing rounds,
+ * a declared target that doesn't exist may still be generated in a later round, so we look it up again when they are complete,
+ * and resolve the rules that declare it again. Other packages that don't exist, e.g. <code>com</code>, are resolved only once.
+ */
+class PackageRules {
+    private static final long[] NO_EDGES = new long[0];
+    private static final int[] NO_PACKAGES = new int[0];
+
+    /** Where we find the packages and their annotations, e.g. in the javac elements or in class files */
+    interface Lookup {
+        boolean exists(String packageName);
+
+        /** The <code>value</code> of this annotation on the package, or null if it's not annotated with it */
+        String[] annotation(String packageName, Class<? extends Annotation> type);
+    }
+
+    private final Lookup lookup;
+    final PackageTable packages;
+    private final Stats stats;
+    private final List<Node> nodes = new ArrayList<>();
+    private int size = 0;
+    private boolean complete = true;
+    /** The declared targets that didn't exist while the rules were not complete */
+    private final List<Node> missingTargets = new ArrayList<>();
+
+    PackageRules(Elements elements, PackageTable packages, Stats stats) { this(elementLookup(elements), packages, stats); }
+
+    PackageRules(Lookup lookup, PackageTable packages, Stats stats) {
+        this.lookup = lookup;
+        this.packages = packages;
+        this.stats = stats;
+    }
+
+    /** The annotations of the packages */
+    static Lookup elementLookup(Elements elements) {
+        return new Lookup() {
+            @Override public boolean exists(String packageName) { return elements.getPackageElement(packageName) != null; }
+
+            @Override public String[] annotation(String packageName, Class<? extends Annotation> type) {
+                PackageElement element = elements.getPackageElement(packageName);
+                Annotation annotation = (element == null) ? null : element.getAnnotation(type);
+                if (annotation instanceof AllowDependenciesOn)
+                    return ((AllowDependenciesOn) annotation).value();
+                if (annotation instanceof ForbidTransitiveDependenciesOn)
+                    return ((ForbidTransitiveDependenciesOn) annotation).value();
+                return null;
+            }
+        };
+    }
+
+    /** When the rules get complete, we look up the missing targets again, as they may have been generated in the meantime */
+    void setComplete(boolean complete) {
+        this.complete = complete;
+        if (complete) {
+            missingTargets.forEach(target -> target.exists = null);
+            missingTargets.clear();
+        }
+    }
+
+    /** The number of packages looked up */
+    int size() { return size; }
+
+    Node get(String packageName) { return get(packages.id(packageName)); }
+
+    Node get(int id) {
+        while (nodes.size() <= id)
+            nodes.add(null);
+        Node node = nodes.get(id);
+        if (node == null) {
+            String packageName = packages.name(id);
+            int dot = packageName.lastIndexOf('.');
+            Node parent = (dot < 0) ? null : get(packageName.substring(0, dot));
+            node = new Node(parent, id, packageName);
+            nodes.set(id, node);
+            size++;
+        }
+        return node;
+    }
+
+    class Node {
+        private final Node parent;
+        final int id;
+        final String name;
+
+        private Boolean exists;
+
+        private boolean resolved = false;
+        /** Resolved while a declared target didn't exist, here or in a super package, but the rules were not complete */
+        private boolean provisional = false;
+
+        /** The targets allowed by the annotation on this package, or null if there is no annotation */
+        private BitSet primary;
+        /** The targets allowed by this package and all super packages, or null if none of them has an annotation */
+        private int[] all;
+        /** The patterns of the targets allowed by this package and all super packages, or null if there are none */
+        private PackagePatterns patterns;
+        /** The source/target {@link PackageTable#edge(int, int) edges} of the invalid targets declared in this package and all super packages */
+        private long[] invalid;
+        /** The targets this package and all super packages must not reach, not even indirectly */
+        private int[] forbidden;
+
+        private Node(Node parent, int id, String name) {
+            this.parent = parent;
+            this.id = id;
+            this.name = name;
+        }
+
+        private Node resolved() {
+            if (!resolved || provisional && complete) {
+                resolved = true;
+                provisional = false;
+                stats.enter(RULES);
+                try {
+                    resolve();
+                } finally {
+                    stats.exit();
+                }
+            }
+            return this;
+        }
+
+        private void resolve() {
+            primary = null;
+            int[] own = null;
+            PackagePatterns ownPatterns = null;
+            long[] ownInvalid = NO_EDGES;
+            String[] targets = exists() ? lookup.annotation(name, AllowDependenciesOn.class) : null;
+            if (targets != null) {
+                own = new int[targets.length];
+                ownInvalid = new long[targets.length];
+                int ownCount = 0, invalidCount = 0;
+                primary = new BitSet();
+                for (String target : targets) {
+                    if (target.isEmpty())
+                        continue;
+                    if (PackagePatterns.isPattern(target)) {
+                        int pattern = packages.id(target);
+                        if (!PackagePatterns.isValid(target)) {
+                            ownInvalid[invalidCount++] = PackageTable.edge(id, pattern);
+                        } else {
+                            if (ownPatterns == null)
+                                ownPatterns = new PackagePatterns();
+                            ownPatterns.add(target, pattern);
+                            primary.set(pattern);
+                        }
+                        continue;
+                    }
+                    Node targetNode = get(target);
+                    if (!existsAsTarget(targetNode)) {
+                        ownInvalid[invalidCount++] = PackageTable.edge(id, targetNode.id);
+                    } else if (!primary.get(targetNode.id)) {
+                        primary.set(targetNode.id);
+                        own[ownCount++] = targetNode.id;
+                    }
+                }
+                own = Arrays.copyOf(own, ownCount);
+                ownInvalid = Arrays.copyOf(ownInvalid, invalidCount);
+            }
+            if (parent != null && parent.resolved().provisional)
+                provisional = true;
+            int[] inherited = (parent == null) ? null : parent.resolved().all;
+            all = merge(own, inherited);
+            PackagePatterns inheritedPatterns = (parent == null) ? null : parent.resolved().patterns;
+            if (ownPatterns == null) {
+                patterns = inheritedPatterns;
+            } else {
+                if (inheritedPatterns != null)
+                    ownPatterns.addAll(inheritedPatterns);
+                patterns = ownPatterns;
+            }
+            forbidden = forbidden((parent == null) ? NO_PACKAGES : parent.resolved().forbidden);
+            long[] inheritedInvalid = (parent == null) ? NO_EDGES : parent.resolved().invalid;
+            if (ownInvalid.length == 0) {
+                invalid = inheritedInvalid;
+            } else {
+                invalid = Arrays.copyOf(ownInvalid, ownInvalid.length + inheritedInvalid.length);
+                System.arraycopy(inheritedInvalid, 0, invalid, ownInvalid.length, inheritedInvalid.length);
+            }
+        }
+
+        /** The own targets first, then the inherited targets that are not already in there */
+        private int[] merge(int[] own, int[] inherited) {
+            if (own == null)
+                return inherited;
+            if (inherited == null)
+                return own;
+            int[] merged = Arrays.copyOf(own, own.length + inherited.length);
+            int count = own.length;
+            for (int target : inherited)
+                if (!primary.get(target))
+                    merged[count++] = target;
+            return Arrays.copyOf(merged, count);
+        }
+
+        private int[] forbidden(int[] inherited) {
+            String[] targets = exists() ? lookup.annotation(name, ForbidTransitiveDependenciesOn.class) : null;
+            if (targets == null)
+                return inherited;
+            int[] merged = Arrays.copyOf(inherited, inherited.length + targets.length);
+            int count = inherited.length;
+            for (String target : targets) {
+                if (target.isEmpty())
+                    continue;
+                int id = packages.id(target);
+                if (!contains(merged, count, id))
+                    merged[count++] = id;
+            }
+            return Arrays.copyOf(merged, count);
+        }
+
+        private boolean contains(int[] array, int length, int value) {
+            for (int i = 0; i < length; i++)
+                if (array[i] == value)
+                    return true;
+            return false;
+        }
+
+        /** Does the declared target exist; if not, and the rules are not complete, our resolution is only provisional */
+        private boolean existsAsTarget(Node target) {
+            if (target.exists())
+                return true;
+            if (!complete) {
+                provisional = true;
+                missingTargets.add(target);
+            }
+            return false;
+        }
+
+        boolean exists() {
+            if (exists == null) {
+                stats.enter(RULES);
+                try {
+                    exists = lookup.exists(name);
+                } finally {
+                    stats.exit();
+                }
+            }
+            return exists;
+        }
+
+        /** Does this package or any of its super packages have an {@link AllowDependenciesOn} annotation */
+        boolean isChecked() { return resolved().all != null; }
+
+        /** The ids of all the allowed targets, or null, if this package is not {@link #isChecked() checked} */
+        int[] allowed() { return resolved().all; }
+
+        /** The ids of the allowed target patterns */
+        List<Integer> patterns() { return (resolved().patterns == null) ? emptyList() : patterns.ids(); }
+
+        /** The id of the first allowed pattern that matches the target, or -1 if none does */
+        int matchingPattern(int target) { return (resolved().patterns == null) ? -1 : patterns.match(packages.name(target)); }
+
+        boolean isPrimary(int target) { return resolved().primary != null && primary.get(target); }
+
+        /** The ids of the targets that this package must not reach */
+        int[] forbidden() { return resolved().forbidden; }
+
+        /** The {@link PackageTable#edge(int, int) edges} of the invalid targets */
+        long[] invalid() { return resolved().invalid; }
+    }
+}
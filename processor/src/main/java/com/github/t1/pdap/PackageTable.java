@@ -0,0 +1,47 @@
+package com.github.t1.pdap;
+
+import javax.lang.model.element.Name;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The names of all packages of a compilation mapped to dense int ids, so we can store and compare packages as ints,
+ * and an edge between two packages as one <code>long</code>.
+ * javac interns its names, so we can look them up without building a string first.
+ */
+class PackageTable {
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final Map<Name, Integer> nameIds = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    static long edge(int source, int target) { return ((long) source << 32) | (target & 0xffffffffL); }
+
+    static int source(long edge) { return (int) (edge >>> 32); }
+
+    static int target(long edge) { return (int) edge; }
+
+    int id(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = names.size();
+            names.add(name);
+            ids.put(name, id);
+        }
+        return id;
+    }
+
+    int id(Name name) {
+        Integer id = nameIds.get(name);
+        if (id == null) {
+            id = id(name.toString());
+            nameIds.put(name, id);
+        }
+        return id;
+    }
+
+    String name(int id) { return names.get(id); }
+
+    int size() { return names.size(); }
+}
@@ -0,0 +1,90 @@
+package com.github.t1.pdap;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * The transitive closure of a package graph, restricted to what is reachable from some roots.
+ * Every strongly connected component gets one bitset row of the packages it reaches, built word by word
+ * from the rows of the components it depends on, so every row is computed only once,
+ * and a reachability check is a single bit test.
+ */
+class Reachability {
+    private final IntFunction<int[]> successors;
+    /** The index of the component of every package plus 1; 0 means not reachable from the roots */
+    private final int[] componentOf;
+    private final long[][] rows;
+
+    /** @param size the number of packages, i.e. larger than all package ids */
+    Reachability(int size, int[] roots, IntFunction<int[]> successors) {
+        this.successors = successors;
+        this.componentOf = new int[size];
+        List<int[]> components = Cycles.components(roots, successors);
+        this.rows = new long[components.size()][];
+        int words = (size + 63) / 64;
+        for (int c = 0; c < components.size(); c++) {
+            int[] members = components.get(c);
+            for (int member : members)
+                componentOf[member] = c + 1;
+            long[] row = new long[words];
+            for (int member : members) {
+                int[] targets = successors.apply(member);
+                if (targets == null)
+                    continue;
+                for (int target : targets) {
+                    row[target >>> 6] |= 1L << target;
+                    int targetComponent = componentOf[target] - 1;
+                    if (targetComponent != c) // all the members of a cycle reach each other, so they set their bits already
+                        or(row, rows[targetComponent]);
+                }
+            }
+            rows[c] = row;
+        }
+    }
+
+    private static void or(long[] row, long[] other) {
+        for (int i = 0; i < row.length; i++)
+            row[i] |= other[i];
+    }
+
+    /** Is there a path of at least one edge from the source to the target; the source must be a root */
+    boolean reaches(int source, int target) {
+        long[] row = rows[componentOf[source] - 1];
+        return target < componentOf.length && (row[target >>> 6] & (1L << target)) != 0;
+    }
+
+    /** A shortest path from the source to the target, including both, found with a breadth first search */
+    int[] path(int source, int target) {
+        int[] previous = new int[componentOf.length];
+        Arrays.fill(previous, -1);
+        int[] queue = new int[componentOf.length];
+        int head = 0, tail = 0;
+        queue[tail++] = source;
+        while (head < tail) {
+            int node = queue[head++];
+            int[] targets = successors.apply(node);
+            if (targets == null)
+                continue;
+            for (int next : targets) {
+                if (previous[next] >= 0 || next == source)
+                    continue;
+                previous[next] = node;
+                if (next == target)
+                    return path(source, target, previous);
+                queue[tail++] = next;
+            }
+        }
+        return null;
+    }
+
+    private static int[] path(int source, int target, int[] previous) {
+        int length = 1;
+        for (int node = target; node != source; node = previous[node])
+            length++;
+        int[] path = new int[length];
+        for (int node = target, i = length - 1; i >= 0; node = previous[node], i--)
+            path[i] = node;
+        return path;
+    }
+}
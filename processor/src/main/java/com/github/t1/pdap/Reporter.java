@@ -0,0 +1,87 @@
+package com.github.t1.pdap;
+
+import com.github.t1.pdap.Dependencies.Dependency;
+
+import javax.tools.Diagnostic.Kind;
+import java.util.Arrays;
+import java.util.List;
+
+import static javax.tools.Diagnostic.Kind.ERROR;
+import static java.util.stream.Collectors.joining;
+import static javax.tools.Diagnostic.Kind.WARNING;
+
+/** Prints the messages about the classified dependencies; how, depends on whether we run as a processor or a plugin */
+abstract class Reporter {
+    private final PackageRules rules;
+    final Locations locations;
+
+    Reporter(PackageRules rules, Locations locations) {
+        this.rules = rules;
+        this.locations = locations;
+    }
+
+    void report(Dependencies dependencies) {
+        dependencies.stream().forEach(dependency -> {
+            Message message = message(dependency);
+            if (message != null)
+                emit(message.kind, message.message + " [" + rules.packages.name(dependency.target) + "]", message.location);
+        });
+        List<int[]> declaredCycles = dependencies.declaredCycles();
+        for (int[] cycle : declaredCycles)
+            emit(ERROR, "Cyclic dependencies declared between " + names(cycle), packageLocation(cycle[0]));
+        for (int[] cycle : dependencies.actualCycles(declaredCycles))
+            emit(WARNING, "Cyclic dependencies between " + names(cycle), packageLocation(cycle[0]));
+        for (int[] path : dependencies.forbiddenPaths())
+            emit(ERROR, "Forbidden transitive dependency on [" + rules.packages.name(path[path.length - 1]) + "] via "
+                + Arrays.stream(path).mapToObj(rules.packages::name).collect(joining(" -> ")), location(dependencies.get(path[0], path[1])));
+        dependencies.missing().forEach(id -> emit(WARNING, "no @AllowDependenciesOn annotation", packageLocation(id)));
+    }
+
+    private String names(int[] packages) {
+        return Arrays.stream(packages).mapToObj(rules.packages::name).collect(joining(", ", "[", "]"));
+    }
+
+    void emit(Kind kind, String message, int location) {
+        Events.INSTANCE.diagnostic(kind, message, locations.toString(location));
+        print(kind, message, location);
+    }
+
+    /** The {@link Locations location} of the package-info of the package with this id, or {@link Locations#NONE} */
+    abstract int packageLocation(int id);
+
+    abstract void print(Kind kind, String message, int location);
+
+    private Message message(Dependency dependency) {
+        switch (dependency.type) {
+            case PRIMARY:
+                return (dependency.used) ? null : new Message(WARNING, "Unused dependency on", location(dependency));
+            case SECONDARY:
+                return null;
+            case INVALID:
+                return new Message(ERROR, "Invalid @AllowDependenciesOn: unknown package", location(dependency));
+            case FORBIDDEN:
+                return new Message(ERROR, "Forbidden dependency on", location(dependency));
+            case INFERRED:
+                return null;
+            case CYCLE:
+                return new Message(ERROR, "Cyclic dependency declared on", location(dependency));
+        }
+        throw new UnsupportedOperationException();
+    }
+
+    private int location(Dependency dependency) {
+        return (dependency.location == Locations.NONE) ? packageLocation(dependency.source) : dependency.location;
+    }
+
+    private static class Message {
+        private final Kind kind;
+        private final String message;
+        private final int location;
+
+        private Message(Kind kind, String message, int location) {
+            this.kind = kind;
+            this.message = message;
+            this.location = location;
+        }
+    }
+}
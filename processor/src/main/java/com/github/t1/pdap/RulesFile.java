@@ -0,0 +1,276 @@
+package com.github.t1.pdap;
+
+import javax.annotation.processing.Filer;
+import javax.tools.FileObject;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileManager.Location;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.lang.annotation.Annotation;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ObjIntConsumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.singleton;
+import static javax.tools.StandardLocation.CLASS_OUTPUT;
+import static javax.tools.StandardLocation.SOURCE_PATH;
+
+/**
+ * The rules of many packages in one file instead of in the annotations of every <code>package-info</code>,
+ * from the <code>pdap.rules</code> option or the <code>META-INF/pdap.rules</code> resource in the sources or the class output.
+ * One rule per line, e.g. <code>allow com.acme.boundary: com.acme.controller, javax.ws.rs</code>
+ * like an {@link AllowDependenciesOn}, or <code>forbid com.acme.boundary: com.acme.persistence</code>
+ * like a {@link ForbidTransitiveDependenciesOn}; a <code>#</code> starts a comment.
+ * The package of a rule may be a pattern, e.g. <code>**.boundary</code>, and the targets may be patterns, too.
+ * A package with rules in this file gets them only from here, so we don't even look at its annotations;
+ * but they are merged with those of the super packages just the same.
+ * All package patterns are compiled into one {@link PackagePatterns} trie, so finding the rules of a package doesn't depend on their number.
+ * It's parsed once per compilation, and doesn't change after that.
+ */
+class RulesFile {
+    static final String OPTION = "pdap.rules";
+    static final String RESOURCE = "META-INF/pdap.rules";
+
+    /**
+     * The file in the path, if it's not null, or else the resource in the sources or the class output.
+     * We list the <code>META-INF</code> package, as in JDK 8 <code>getFileForInput</code> fails for a missing file,
+     * if the file manager is wrapped, e.g. when compiling with the <code>javax.tools</code> API.
+     *
+     * @return null if there is no rules file
+     */
+    static RulesFile of(String path, JavaFileManager fileManager) {
+        if (path != null)
+            return read(Paths.get(path));
+        for (Location location : new Location[]{SOURCE_PATH, CLASS_OUTPUT}) {
+            if (!fileManager.hasLocation(location))
+                continue;
+            try {
+                for (JavaFileObject file : fileManager.list(location, "META-INF", singleton(JavaFileObject.Kind.OTHER), false))
+                    if (file.toUri().getPath().endsWith("/" + RESOURCE))
+                        return read(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException("can't read " + RESOURCE, e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Like {@link #of(String, JavaFileManager)}, but through the filer, e.g. if a build tool wraps the processing environment.
+     * Only in the class output, as for missing files in other locations, the filer fails just like <code>getFileForInput</code>.
+     *
+     * @return null if there is no rules file
+     */
+    static RulesFile of(String path, Filer filer) {
+        if (path != null)
+            return read(Paths.get(path));
+        try {
+            return read(filer.getResource(CLASS_OUTPUT, "", RESOURCE));
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException("can't read " + RESOURCE, e);
+        }
+    }
+
+    static RulesFile read(Path path) {
+        try {
+            return read(path.toUri(), path.toString(), new String(Files.readAllBytes(path), UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException("can't read " + OPTION + " file " + path, e);
+        }
+    }
+
+    /** Not with <code>getCharContent</code>, which not all file objects for resources support */
+    private static RulesFile read(FileObject resource) throws IOException {
+        StringBuilder content = new StringBuilder();
+        try (Reader reader = new InputStreamReader(resource.openInputStream(), UTF_8)) {
+            char[] buffer = new char[8192];
+            for (int n = reader.read(buffer); n >= 0; n = reader.read(buffer))
+                content.append(buffer, 0, n);
+        }
+        return read(resource.toUri(), resource.getName(), content.toString());
+    }
+
+    static RulesFile read(URI uri, String name, String content) { return new RulesFile(new Source(uri, name, content)); }
+
+    /** So javac can show the line we report at */
+    private static class Source extends SimpleJavaFileObject {
+        private final String name;
+        private final String content;
+
+        private Source(URI uri, String name, String content) {
+            super(uri, Kind.OTHER);
+            this.name = name;
+            this.content = content;
+        }
+
+        @Override public String getName() { return name; }
+
+        @Override public CharSequence getCharContent(boolean ignoreEncodingErrors) { return content; }
+    }
+
+    /** A range of the file to report at */
+    private static class Range {
+        final int start, end, line;
+
+        private Range(int start, int end, int line) {
+            this.start = start;
+            this.end = end;
+            this.line = line;
+        }
+    }
+
+    /** The targets of one package or pattern, from all of its lines */
+    private static class Rule {
+        /** The first line */
+        private final Range range;
+        private final List<String> allowed = new ArrayList<>();
+        private final List<String> forbidden = new ArrayList<>();
+        private boolean allows = false;
+        private boolean forbids = false;
+
+        private Rule(Range range) { this.range = range; }
+
+        /** The targets, or null, if there is no line of this type */
+        private List<String> targets(Class<? extends Annotation> type) {
+            if (type == AllowDependenciesOn.class)
+                return allows ? allowed : null;
+            return forbids ? forbidden : null;
+        }
+    }
+
+    private final Source source;
+    private final Map<String, Rule> packages = new HashMap<>();
+    /** The ids of these patterns are the indexes of their {@link #patternRules} */
+    private final PackagePatterns patterns = new PackagePatterns();
+    private final Map<String, Integer> patternIndexes = new HashMap<>();
+    private final List<Rule> patternRules = new ArrayList<>();
+    private final List<Range> errorRanges = new ArrayList<>();
+    private final List<String> errors = new ArrayList<>();
+
+    private RulesFile(Source source) {
+        this.source = source;
+        String content = source.content;
+        int line = 1;
+        for (int start = 0; start < content.length(); line++) {
+            int end = content.indexOf('\n', start);
+            if (end < 0)
+                end = content.length();
+            parse(content.substring(start, end), new Range(start, end, line));
+            start = end + 1;
+        }
+    }
+
+    private void parse(String line, Range range) {
+        int comment = line.indexOf('#');
+        if (comment >= 0)
+            line = line.substring(0, comment);
+        line = line.trim();
+        if (line.isEmpty())
+            return;
+        int space = line.indexOf(' ');
+        int colon = line.indexOf(':');
+        String keyword = (space < 0) ? line : line.substring(0, space);
+        if (!keyword.equals("allow") && !keyword.equals("forbid")) {
+            error(range, "expected `allow` or `forbid`, but found `" + keyword + "`");
+            return;
+        }
+        if (space < 0 || colon < space) {
+            error(range, "expected `" + keyword + " <package>: <targets>`");
+            return;
+        }
+        String packageName = line.substring(space, colon).trim();
+        if (packageName.isEmpty() || packageName.indexOf(' ') >= 0
+            || PackagePatterns.isPattern(packageName) && !PackagePatterns.isValid(packageName)) {
+            error(range, "invalid package `" + packageName + "`");
+            return;
+        }
+        Rule rule = rule(packageName, range);
+        List<String> targets = Arrays.asList(line.substring(colon + 1).trim().split("[\\s,]+"));
+        if (keyword.equals("allow")) {
+            rule.allows = true;
+            rule.allowed.addAll(targets);
+        } else {
+            rule.forbids = true;
+            rule.forbidden.addAll(targets);
+        }
+    }
+
+    private Rule rule(String packageName, Range range) {
+        if (!PackagePatterns.isPattern(packageName))
+            return packages.computeIfAbsent(packageName, p -> new Rule(range));
+        return patternRules.get(patternIndexes.computeIfAbsent(packageName, p -> {
+            patterns.add(packageName, patternRules.size());
+            patternRules.add(new Rule(range));
+            return patternRules.size() - 1;
+        }));
+    }
+
+    private void error(Range range, String message) {
+        errorRanges.add(range);
+        errors.add(message);
+    }
+
+    /** Record the location of every line we couldn't parse, and print it with the message */
+    void errors(Locations locations, ObjIntConsumer<String> print) {
+        for (int i = 0; i < errors.size(); i++)
+            print.accept(errors.get(i), location(locations, errorRanges.get(i)));
+    }
+
+    /** The location of the package-info, if it's {@link Locations#isKnown(int) known}, or else of the first rule of this package */
+    int packageLocation(Locations locations, String packageName, int packageInfo) {
+        if (Locations.isKnown(packageInfo))
+            return packageInfo;
+        Rule rule = packages.get(packageName);
+        if (rule == null) {
+            int pattern = patterns.match(packageName);
+            rule = (pattern < 0) ? null : patternRules.get(pattern);
+        }
+        return (rule == null) ? packageInfo : location(locations, rule.range);
+    }
+
+    private int location(Locations locations, Range range) {
+        return locations.of(source, range.start, range.end, range.line);
+    }
+
+    /** The rules of this file, or of the other lookup, e.g. the annotations, for the packages without rules in this file */
+    PackageRules.Lookup lookup(PackageRules.Lookup annotations) {
+        return new PackageRules.Lookup() {
+            @Override public boolean exists(String packageName) { return annotations.exists(packageName); }
+
+            @Override public String[] annotation(String packageName, Class<? extends Annotation> type) {
+                Rule rule = packages.get(packageName);
+                List<Integer> matching = patterns.matchAll(packageName);
+                if (rule == null && matching.isEmpty())
+                    return annotations.annotation(packageName, type);
+                List<String> targets = null;
+                if (rule != null && rule.targets(type) != null)
+                    targets = new ArrayList<>(rule.targets(type));
+                for (int pattern : matching) {
+                    Rule patternRule = patternRules.get(pattern);
+                    if (patternRule.targets(type) != null) {
+                        if (targets == null)
+                            targets = new ArrayList<>();
+                        targets.addAll(patternRule.targets(type));
+                    }
+                }
+                return (targets == null) ? null : targets.toArray(new String[0]);
+            }
+        };
+    }
+}
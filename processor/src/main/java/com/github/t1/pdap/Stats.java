@@ -0,0 +1,199 @@
+package com.github.t1.pdap;
+
+import javax.annotation.processing.Filer;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static javax.tools.StandardLocation.CLASS_OUTPUT;
+
+/**
+ * Where the processor spends its time and how well its caches work, enabled with the <code>pdap.stats</code> option:
+ * <code>-Apdap.stats</code> prints a summary when processing is over, <code>-Apdap.stats=json</code> also writes it
+ * to the class output. Nested phases are measured exclusively, e.g. rules resolved while classifying count as rules.
+ */
+class Stats {
+    static final String OPTION = "pdap.stats";
+    static final String RESOURCE = "META-INF/pdap/stats.json";
+
+    /** Does nothing, so it can be used without checking */
+    static final Stats DISABLED = new Stats(false, false);
+
+    static Stats of(Map<String, String> options) {
+        if (!options.containsKey(OPTION))
+            return DISABLED;
+        return new Stats(true, "json".equals(options.get(OPTION)));
+    }
+
+    enum Phase {
+        /** Looking up packages and their rules */
+        RULES,
+        /** Collecting the dependencies from the syntax trees */
+        COLLECT,
+        /** Classifying the dependencies by the rules */
+        CLASSIFY,
+        /** Finding cycles and forbidden paths, and printing the messages */
+        REPORT
+    }
+
+    enum Counter {
+        COMPILATION_UNITS, TYPES,
+        /** Types we didn't collect, as their packages have no rules */
+        SKIPPED_TYPES,
+        PACKAGES, EDGES,
+        /** Resolving a simple type name */
+        RESOLVE,
+        /** Resolving a simple type name that is neither imported nor cached */
+        RESOLVE_MISS,
+        FIND_METHOD,
+        /** Finding a method in a type whose method table is not cached */
+        FIND_METHOD_MISS,
+        ANALYSIS_CACHE_HIT
+    }
+
+    /** The largest size of the state we keep over the whole compilation */
+    enum Retained {
+        COMPILATION_UNITS, PACKAGES, RULES, METHOD_TABLES, SIMPLE_NAMES,
+        /** The source positions we may report at */
+        LOCATIONS
+    }
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final boolean enabled;
+    private final boolean json;
+
+    private final long[] wall = new long[Phase.values().length];
+    private final long[] cpu = new long[Phase.values().length];
+    private final long[] counters = new long[Counter.values().length];
+    private final long[] retained = new long[Retained.values().length];
+
+    /** The phases we are in, the innermost on top */
+    private Phase[] phases = new Phase[16];
+    private int depth = 0;
+    private long wallStart;
+    private long cpuStart;
+
+    private Stats(boolean enabled, boolean json) {
+        this.enabled = enabled;
+        this.json = json;
+    }
+
+    boolean isEnabled() { return enabled; }
+
+    /** Start measuring this phase and pause the current one; must be followed by an {@link #exit()} */
+    void enter(Phase phase) {
+        if (!enabled)
+            return;
+        accumulate();
+        if (depth == phases.length)
+            phases = Arrays.copyOf(phases, 2 * depth);
+        phases[depth++] = phase;
+    }
+
+    void exit() {
+        if (!enabled)
+            return;
+        accumulate();
+        depth--;
+    }
+
+    /** Add the time since the last call to the current phase, if any */
+    private void accumulate() {
+        long wallNow = System.nanoTime();
+        long cpuNow = cpuTime();
+        if (depth > 0) {
+            Phase phase = phases[depth - 1];
+            wall[phase.ordinal()] += wallNow - wallStart;
+            cpu[phase.ordinal()] += cpuNow - cpuStart;
+        }
+        wallStart = wallNow;
+        cpuStart = cpuNow;
+    }
+
+    private static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    void count(Counter counter) { count(counter, 1); }
+
+    void count(Counter counter, long amount) {
+        if (enabled)
+            counters[counter.ordinal()] += amount;
+    }
+
+    void retained(Retained state, long size) {
+        if (enabled && size > retained[state.ordinal()])
+            retained[state.ordinal()] = size;
+    }
+
+    String summary() {
+        StringBuilder out = new StringBuilder("package dependencies stats:\n  phases (wall/cpu ms):");
+        for (Phase phase : Phase.values())
+            out.append(' ').append(name(phase)).append(' ').append(millis(wall[phase.ordinal()])).append('/').append(millis(cpu[phase.ordinal()]));
+        out.append("\n  compilation units ").append(get(Counter.COMPILATION_UNITS))
+            .append(", types ").append(get(Counter.TYPES)).append(" (").append(get(Counter.SKIPPED_TYPES)).append(" skipped)")
+            .append(", packages ").append(get(Counter.PACKAGES))
+            .append(", edges ").append(get(Counter.EDGES))
+            .append("\n  resolve ").append(get(Counter.RESOLVE)).append(" calls, ").append(hitRate(Counter.RESOLVE, Counter.RESOLVE_MISS)).append("% cached")
+            .append(", findMethod ").append(get(Counter.FIND_METHOD)).append(" calls, ").append(hitRate(Counter.FIND_METHOD, Counter.FIND_METHOD_MISS)).append("% cached")
+            .append(", analysis cache hits ").append(get(Counter.ANALYSIS_CACHE_HIT)).append(" of ").append(get(Counter.COMPILATION_UNITS))
+            .append("\n  retained at most:");
+        for (Retained state : Retained.values())
+            out.append(' ').append(name(state)).append(' ').append(retained[state.ordinal()]).append(',');
+        out.setLength(out.length() - 1);
+        return out.toString();
+    }
+
+    void write(Filer filer) {
+        if (!json)
+            return;
+        try (Writer writer = new OutputStreamWriter(filer.createResource(CLASS_OUTPUT, "", RESOURCE).openOutputStream(), UTF_8)) {
+            writer.write(toJson());
+        } catch (IOException e) {
+            throw new UncheckedIOException("can't write " + RESOURCE, e);
+        }
+    }
+
+    String toJson() {
+        StringBuilder out = new StringBuilder("{\n  \"phases\": {");
+        for (Phase phase : Phase.values())
+            out.append("\n    \"").append(key(phase)).append("\": {\"wallNanos\": ").append(wall[phase.ordinal()])
+                .append(", \"cpuNanos\": ").append(cpu[phase.ordinal()]).append("},");
+        out.setLength(out.length() - 1);
+        out.append("\n  },\n  \"counters\": {");
+        for (Counter counter : Counter.values())
+            out.append("\n    \"").append(key(counter)).append("\": ").append(get(counter)).append(',');
+        out.setLength(out.length() - 1);
+        out.append("\n  },\n  \"retained\": {");
+        for (Retained state : Retained.values())
+            out.append("\n    \"").append(key(state)).append("\": ").append(retained[state.ordinal()]).append(',');
+        out.setLength(out.length() - 1);
+        return out.append("\n  }\n}\n").toString();
+    }
+
+    long get(Counter counter) { return counters[counter.ordinal()]; }
+
+    private long hitRate(Counter calls, Counter misses) {
+        return (get(calls) == 0) ? 100 : 100 * (get(calls) - get(misses)) / get(calls);
+    }
+
+    private static String millis(long nanos) { return String.format(Locale.ROOT, "%.1f", nanos / 1_000_000.0); }
+
+    private static String name(Enum<?> value) { return value.name().toLowerCase(Locale.ROOT).replace('_', ' '); }
+
+    /** The camel case name, e.g. <code>compilationUnits</code> */
+    private static String key(Enum<?> value) {
+        StringBuilder key = new StringBuilder();
+        for (String word : value.name().toLowerCase(Locale.ROOT).split("_"))
+            key.append((key.length() == 0) ? word : Character.toUpperCase(word.charAt(0)) + word.substring(1));
+        return key.toString();
+    }
+}
@@ -0,0 +1,152 @@
+package com.github.t1.pdap;
+
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.code.Symbol.ClassSymbol;
+import com.sun.tools.javac.code.Symbol.MethodSymbol;
+import com.sun.tools.javac.model.JavacElements;
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.JCTree.JCCompilationUnit;
+import com.sun.tools.javac.util.Name;
+import com.sun.tools.javac.util.Pair;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.github.t1.pdap.Stats.Counter.FIND_METHOD_MISS;
+import static com.github.t1.pdap.Stats.Counter.RESOLVE_MISS;
+import static java.util.Collections.emptyList;
+
+/**
+ * The symbol lookups shared by all {@link DependenciesCollector}s of a round.
+ * Most of the names we look up are not types at all, e.g. local variables, so we also remember the misses.
+ * javac creates new symbols in every round, so we forget the symbols at the {@link #endRound() end of each round},
+ * not to retain the symbols of all rounds; only the {@link PackageTable} lives for the whole compilation.
+ */
+class Symbols {
+    final JavacElements elements;
+    final Types types;
+    final PackageTable packages = new PackageTable();
+    final Stats stats;
+
+    /** Simple names that are not imported, mapped to the type in the default package or <code>java.lang</code>, or null */
+    private final Map<Name, ClassSymbol> unimported = new HashMap<>();
+
+    /** The {@link PackageTable} ids of the packages the symbols we have seen are in */
+    private final Map<Symbol, Integer> packageIds = new IdentityHashMap<>();
+
+    /** The types of literals */
+    private final Map<Class<?>, ClassSymbol> classes = new HashMap<>();
+
+    /** The methods of a type, including the inherited ones, by name */
+    private final Map<ClassSymbol, Map<Name, Overloads>> methods = new HashMap<>();
+
+    Symbols(Elements elements, Types types, Stats stats) {
+        this.elements = (JavacElements) elements;
+        this.types = types;
+        this.stats = stats;
+    }
+
+    /** The compilation unit that declares this element, or null if it's not compiled from source */
+    JCCompilationUnit compilationUnit(Element element) {
+        Pair<JCTree, JCCompilationUnit> tree = elements.getTreeAndTopLevel(element, null, null);
+        return (tree == null) ? null : tree.snd;
+    }
+
+    /**
+     * The {@link PackageTable} id of the package this symbol is in, e.g. for a nested type or a member,
+     * the package of the top level type, not its owner. The same id instance for every call, so it's never boxed again.
+     */
+    Integer packageId(Symbol symbol) {
+        Integer id = packageIds.get(symbol);
+        if (id == null) {
+            id = packages.id(symbol.packge().getQualifiedName());
+            packageIds.put(symbol, id);
+        }
+        return id;
+    }
+
+    /** The symbol of a class we have at runtime, e.g. <code>Integer</code> for the type of an int literal */
+    ClassSymbol type(Class<?> type) {
+        ClassSymbol symbol = classes.get(type);
+        if (symbol == null) {
+            symbol = elements.getTypeElement(type.getName());
+            classes.put(type, symbol);
+        }
+        return symbol;
+    }
+
+    /** The type with this simple name in the default package or in <code>java.lang</code>, or null */
+    ClassSymbol unimported(Name name) {
+        ClassSymbol symbol = unimported.get(name);
+        if (symbol == null && !unimported.containsKey(name)) {
+            stats.count(RESOLVE_MISS);
+            symbol = elements.getTypeElement(name);
+            if (symbol == null)
+                symbol = elements.getTypeElement("java.lang." + name);
+            unimported.put(name, symbol);
+        }
+        return symbol;
+    }
+
+    /** The methods of the type with this name, including the inherited ones, or null if there are none */
+    Overloads methods(ClassSymbol type, Name name) {
+        Map<Name, Overloads> table = methods.get(type);
+        if (table == null) {
+            stats.count(FIND_METHOD_MISS);
+            table = new HashMap<>();
+            for (Symbol member : elements.getAllMembers(type))
+                if (member instanceof MethodSymbol)
+                    table.computeIfAbsent(member.name, n -> new Overloads()).add((MethodSymbol) member);
+            methods.put(type, table);
+        }
+        return table.get(name);
+    }
+
+    void endRound() {
+        unimported.clear();
+        packageIds.clear();
+        classes.clear();
+        methods.clear();
+    }
+
+    /** The number of types whose methods we have cached */
+    int methodTables() { return methods.size(); }
+
+    /** The number of simple names that we have resolved without an import */
+    int simpleNames() { return unimported.size(); }
+
+    /** Methods with the same name, indexed by their number of parameters, in the order of {@link Elements#getAllMembers} */
+    static class Overloads {
+        private final List<List<MethodSymbol>> fixedArity = new ArrayList<>();
+        private final List<MethodSymbol> varArgs = new ArrayList<>();
+        private int size = 0;
+
+        private void add(MethodSymbol method) {
+            if (method.isVarArgs()) {
+                varArgs.add(method);
+            } else {
+                int arity = method.type.getParameterTypes().size();
+                while (fixedArity.size() <= arity)
+                    fixedArity.add(new ArrayList<>());
+                fixedArity.get(arity).add(method);
+            }
+            size++;
+        }
+
+        /** The methods that take exactly this number of arguments */
+        List<MethodSymbol> fixedArity(int arity) {
+            return (arity < fixedArity.size()) ? fixedArity.get(arity) : emptyList();
+        }
+
+        /** The methods with variable arguments, i.e. they may take more or one less arguments than parameters */
+        List<MethodSymbol> varArgs() { return varArgs; }
+
+        int size() { return size; }
+    }
+}
@@ -1,20 +1,31 @@
 package com.github.t1.pdap;
 
+import com.sun.source.util.JavacTask;
+import org.junit.jupiter.api.AfterEach;
+
+import javax.annotation.processing.Processor;
 import javax.tools.Diagnostic;
 import javax.tools.Diagnostic.Kind;
 import javax.tools.DiagnosticListener;
 import javax.tools.JavaCompiler;
 import javax.tools.JavaCompiler.CompilationTask;
+import javax.tools.JavaFileManager;
 import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
 import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 import static java.util.Arrays.asList;
-import static java.util.Collections.singletonList;
+import static java.util.Comparator.reverseOrder;
 import static java.util.stream.Collectors.toList;
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -122,7 +133,35 @@ class AbstractAnnotationProcessorTest {
     }
 
     private final List<DiagnosticMatch> diagnostics = new ArrayList<>();
-    private PackageDependenciesAnnotationProcessor pdap = new PackageDependenciesAnnotationProcessor();
+    /** Write the class files here and use them as class path, or discard them if null */
+    Path classOutput = null;
+    /** More compiler options, e.g. for the processor */
+    final List<String> extraOptions = new ArrayList<>();
+    /** More annotation processors to run before ours, e.g. to generate sources */
+    final List<Processor> extraProcessors = new ArrayList<>();
+    /** Run as javac plugin instead of as annotation processor */
+    boolean plugin = false;
+    /** Pass a processing environment to the processor that is not javac's own, like Gradle does */
+    boolean wrapped = false;
+    private final List<Path> tempDirectories = new ArrayList<>();
+
+    /** A new directory that is deleted after the test */
+    Path tempDirectory(String prefix) throws IOException {
+        Path directory = Files.createTempDirectory(prefix);
+        tempDirectories.add(directory);
+        return directory;
+    }
+
+    /** Write the class files to a new {@link #tempDirectory(String) temporary directory} */
+    void withClassOutput() throws IOException { classOutput = tempDirectory("pdap-classes"); }
+
+    @AfterEach void deleteTempDirectories() throws IOException {
+        for (Path directory : tempDirectories) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
 
     StringJavaFileObject file(String file, String source) { return new StringJavaFileObject(Paths.get(file), source); }
 
@@ -134,11 +173,24 @@ class AbstractAnnotationProcessorTest {
             diagnostics.add(new DiagnosticMatch(diagnostic));
         };
         JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-        NoOutputFileManager fileManager = new NoOutputFileManager(compiler.getStandardFileManager(diagnosticListener, null, null));
+        StandardJavaFileManager standardFileManager = compiler.getStandardFileManager(diagnosticListener, null, null);
+        List<String> options = new ArrayList<>(asList("-Xlint:all", "-source", "8", "-target", "8"));
+        options.addAll(extraOptions);
+        JavaFileManager fileManager;
+        if (classOutput == null) {
+            fileManager = new NoOutputFileManager(standardFileManager);
+        } else {
+            fileManager = standardFileManager;
+            options.addAll(asList("-d", classOutput.toString(),
+                "-classpath", classOutput + File.pathSeparator + System.getProperty("java.class.path")));
+        }
 
-        CompilationTask task = compiler.getTask(null, fileManager, diagnosticListener, asList("-Xlint:all", "-source", "8", "-target", "8"),
-            null, asList(compilationUnits));
-        task.setProcessors(singletonList(pdap));
+        CompilationTask task = compiler.getTask(null, fileManager, diagnosticListener, options, null, asList(compilationUnits));
+        List<Processor> processors = new ArrayList<>(extraProcessors);
+        processors.add(wrapped ? new WrappingProcessor(new PackageDependenciesAnnotationProcessor()) : new PackageDependenciesAnnotationProcessor());
+        task.setProcessors(processors);
+        if (plugin)
+            new PackageDependenciesPlugin().init((JavacTask) task);
         task.call();
     }
 
@@ -6,6 +6,9 @@ import javax.tools.JavaFileObject;
 import javax.tools.JavaFileObject.Kind;
 import javax.tools.SimpleJavaFileObject;
 import javax.tools.StandardJavaFileManager;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
 
@@ -16,6 +19,10 @@ class NoOutputFileManager extends ForwardingJavaFileManager<StandardJavaFileMana
         return new NoOutputJavaFileObject(URI.create("string:///" + className.replace('.', '/') + kind.extension), kind);
     }
 
+    @Override public FileObject getFileForOutput(Location location, String packageName, String relativeName, FileObject sibling) {
+        return new NoOutputJavaFileObject(URI.create("string:///" + packageName.replace('.', '/') + "/" + relativeName), Kind.OTHER);
+    }
+
     @Override public boolean isSameFile(FileObject a, FileObject b) {
         return a.toUri().equals(b.toUri());
     }
@@ -23,6 +30,10 @@ class NoOutputFileManager extends ForwardingJavaFileManager<StandardJavaFileMana
     private static final class NoOutputJavaFileObject extends SimpleJavaFileObject {
         NoOutputJavaFileObject(URI uri, Kind kind) { super(uri, kind); }
 
+        @Override public InputStream openInputStream() throws IOException {
+            throw new FileNotFoundException(toUri().toString());
+        }
+
         @Override
         public OutputStream openOutputStream() {
             return new OutputStream() {
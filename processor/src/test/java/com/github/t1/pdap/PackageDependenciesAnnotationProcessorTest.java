@@ -1,12 +1,48 @@
 package com.github.t1.pdap;
 
+import com.sun.management.ThreadMXBean;
+import com.sun.tools.javac.tree.JCTree.JCCompilationUnit;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.TypeElement;
+import javax.tools.JavaFileObject;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.annotation.Annotation;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
 import java.util.stream.Stream;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
 
 class PackageDependenciesAnnotationProcessorTest extends AbstractAnnotationProcessorTest {
     private void compileSource(String source) {
@@ -71,6 +107,15 @@ class PackageDependenciesAnnotationProcessorTest extends AbstractAnnotationProce
             "}\n");
     }
 
+    private StringJavaFileObject targetWithNestedClass() {
+        return file("target/Target.java", "" +
+            "package target;\n" +
+            "\n" +
+            "public class Target {\n" +
+            "    public static class Nested {}\n" +
+            "}\n");
+    }
+
     private StringJavaFileObject targetEnum() {
         return file("target/Target.java", "" +
             "package target;\n" +
@@ -189,6 +234,25 @@ class PackageDependenciesAnnotationProcessorTest extends AbstractAnnotationProce
             expect();
         }
 
+        @Test void shouldNotReportDependencyOnOwnSubPackage() {
+            compile(
+                packageInfo("source.sub"),
+                file("source/sub/Source.java", "" +
+                    "package source.sub;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Other other = Other.create();\n" +
+                    "}\n"),
+                file("source/sub/Other.java", "" +
+                    "package source.sub;\n" +
+                    "\n" +
+                    "public class Other {\n" +
+                    "    public static Other create() { return new Other(); }\n" +
+                    "}\n"));
+
+            expect();
+        }
+
         @Test void shouldNotWarnAboutMissingSuperPackageInfo() {
             compile(
                 packageInfo("source.sub1.sub2", "target"),
@@ -228,6 +292,146 @@ class PackageDependenciesAnnotationProcessorTest extends AbstractAnnotationProce
             );
         }
 
+        @Test void shouldReportErrorForDeclaredCycle() {
+            compile(
+                packageInfo("a", "b"),
+                file("a/A.java", "" +
+                    "package a;\n" +
+                    "\n" +
+                    "import b.B;\n" +
+                    "\n" +
+                    "public class A {\n" +
+                    "    private B b;\n" +
+                    "}\n"),
+                packageInfo("b", "c"),
+                file("b/B.java", "" +
+                    "package b;\n" +
+                    "\n" +
+                    "import c.C;\n" +
+                    "\n" +
+                    "public class B {\n" +
+                    "    private C c;\n" +
+                    "}\n"),
+                packageInfo("c", "a"),
+                file("c/C.java", "" +
+                    "package c;\n" +
+                    "\n" +
+                    "import a.A;\n" +
+                    "\n" +
+                    "public class C {\n" +
+                    "    private A a;\n" +
+                    "}\n"));
+
+            expect(
+                error("/a/package-info.java", 0, 0, 84, 1, 1,
+                    "compiler.err.proc.messager", "Cyclic dependencies declared between [a, b, c]")
+            );
+        }
+
+        @Test void shouldWarnAboutActualCycle() {
+            extraOptions.add("-Apdap.inferred");
+
+            compile(
+                packageInfo("source", "target"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Target target;\n" +
+                    "}\n"),
+                file("target/package-info.java", "" +
+                    "package target;"),
+                file("target/Target.java", "" +
+                    "package target;\n" +
+                    "\n" +
+                    "import source.Source;\n" +
+                    "\n" +
+                    "public class Target {\n" +
+                    "    private Source source;\n" +
+                    "}\n"));
+
+            expect(
+                warning("/source/package-info.java", 0, 0, 94, 1, 1,
+                    "compiler.warn.proc.messager", "Cyclic dependencies between [source, target]"),
+                warning("/target/package-info.java", 0, 0, 15, 1, 1,
+                    "compiler.warn.proc.messager", "no @AllowDependenciesOn annotation")
+            );
+        }
+
+        @Test void shouldSkipPackageWithoutRules() {
+            compile(
+                packageInfo("source", "target"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Target target;\n" +
+                    "}\n"),
+                file("target/package-info.java", "" +
+                    "package target;"),
+                file("target/Target.java", "" +
+                    "package target;\n" +
+                    "\n" +
+                    "import source.Source;\n" +
+                    "\n" +
+                    "public class Target {\n" +
+                    "    private Source source;\n" +
+                    "}\n"));
+
+            expect(
+                warning("/target/package-info.java", 0, 0, 15, 1, 1,
+                    "compiler.warn.proc.messager", "no @AllowDependenciesOn annotation")
+            );
+        }
+
+        private void compileUnusedImportInPackageWithoutRules() {
+            compile(
+                packageInfo("source", "target"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Target target;\n" +
+                    "}\n"),
+                file("target/package-info.java", "" +
+                    "package target;"),
+                file("target/Target.java", "" +
+                    "package target;\n" +
+                    "\n" +
+                    "import source.Source;\n" +
+                    "\n" +
+                    "public class Target {\n" +
+                    "}\n"));
+        }
+
+        @Test void shouldNotWarnAboutExtraImportInPackageWithoutRules() {
+            compileUnusedImportInPackageWithoutRules();
+
+            expect(
+                warning("/target/package-info.java", 0, 0, 15, 1, 1,
+                    "compiler.warn.proc.messager", "no @AllowDependenciesOn annotation")
+            );
+        }
+
+        @Test void shouldWarnAboutExtraImportInPackageWithoutRulesWhenInferred() {
+            extraOptions.add("-Apdap.inferred");
+
+            compileUnusedImportInPackageWithoutRules();
+
+            expect(
+                warning("/target/Target.java", 47, 40, 63, 5, 8,
+                    "compiler.warn.proc.messager", "Import [source] not found as dependency"),
+                warning("/target/package-info.java", 0, 0, 15, 1, 1,
+                    "compiler.warn.proc.messager", "no @AllowDependenciesOn annotation")
+            );
+        }
+
         @Test void shouldWarnAboutUnusedDependency() {
             compileSource("" +
                 "package source;\n" +
@@ -240,6 +444,29 @@ class PackageDependenciesAnnotationProcessorTest extends AbstractAnnotationProce
                     "compiler.warn.proc.messager", "Unused dependency on [target]")
             );
         }
+
+        @Test void shouldNotWarnAboutDependencyUsedByOnlyOneOfTwoTypes() {
+            compile(
+                packageInfo("source", "target"),
+                file("source/Source1.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "public class Source1 {\n" +
+                    "}\n"),
+                file("source/Source2.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source2 {\n" +
+                    "    private Target target;\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetInterface());
+
+            expect();
+        }
     }
 
     @Nested class ImportedDependencies {
@@ -332,6 +559,45 @@ class PackageDependenciesAnnotationProcessorTest extends AbstractAnnotationProce
             );
         }
 
+        @Test void shouldNotReportErrorForFieldOfNestedTypeWithAllowedDependency() {
+            compile(
+                packageInfo("source", "target"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target.Nested;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Nested nested;\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetWithNestedClass());
+
+            expect();
+        }
+
+        @Test void shouldReportErrorForFieldOfNestedTypeWithForbiddenDependency() {
+            compile(
+                packageInfo("source"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Target.Nested nested;\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetWithNestedClass());
+
+            expect(
+                error("/source/Source.java", 88, 66, 95, 6, 27,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]")
+            );
+        }
+
         @Disabled @Test void shouldReportErrorForWildcardImportedStaticEnumValueWithForbiddenDependency() {
             compile(
                 packageInfo("source"),
@@ -575,7 +841,7 @@ class PackageDependenciesAnnotationProcessorTest extends AbstractAnnotationProce
             );
         }
 
-        @Disabled @Test void shouldReportErrorAboutForbiddenStaticMethodInvocationToNonCompiledClassSuperType() {
+        @Test void shouldReportErrorAboutForbiddenStaticMethodInvocationToNonCompiledClassSuperType() {
             compile(
                 packageInfo("source"),
                 file("source/Source.java", "" +
@@ -590,7 +856,7 @@ class PackageDependenciesAnnotationProcessorTest extends AbstractAnnotationProce
                     "}\n"));
 
             expect(
-                error("/source/Source.java", 82, 69, 133, 6, 18,
+                error("/source/Source.java", 82, 69, 124, 6, 18,
                     "compiler.err.proc.messager", "Forbidden dependency on [java.util]")
             );
         }
@@ -757,6 +1023,24 @@ class PackageDependenciesAnnotationProcessorTest extends AbstractAnnotationProce
             );
         }
 
+        @Test void shouldWarnOnlyOnceAboutUnusedImportInCompilationUnitWithTwoClasses() {
+            compileSource("" +
+                "package source;\n" +
+                "\n" +
+                "import target.Target;\n" +
+                "\n" +
+                "public class Source {}\n" +
+                "\n" +
+                "class SubSource {}\n");
+
+            expect(
+                warning("/source/Source.java", 47, 40, 62, 5, 8,
+                    "compiler.warn.proc.messager", "Import [target] not found as dependency"),
+                warning("/source/package-info.java", 0, 0, 94, 1, 1,
+                    "compiler.warn.proc.messager", "Unused dependency on [target]")
+            );
+        }
+
         @Test void shouldReportErrorForForbiddenExtendsClassDependency() {
             compile(
                 packageInfo("source"),
@@ -1318,6 +1602,59 @@ class PackageDependenciesAnnotationProcessorTest extends AbstractAnnotationProce
             );
         }
 
+        @Test void shouldReportErrorAboutForbiddenIndirectDependencyWithOverloadedVariableArgumentMethods() {
+            compile(
+                packageInfo("source", "target1"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target1.Target1;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private void foo(String s) { Object target2 = new Target1().target2(s); }\n" +
+                    "}\n"),
+
+                packageInfo("target1", "target2"),
+                file("target1/Target1.java", "" +
+                    "package target1;\n" +
+                    "\n" +
+                    "import target2.Target2;\n" +
+                    "\n" +
+                    "public class Target1 {\n" +
+                    "    public Target2 target2(String s) { return null; }\n" +
+                    "    public String target2(int i, int j) { return null; }\n" +
+                    "}\n"),
+
+                packageInfo("target2"),
+                file("target2/Target2.java", "" +
+                    "package target2;\n" +
+                    "\n" +
+                    "public class Target2 {\n" +
+                    "}\n"));
+
+            expect(
+                error("/source/Source.java", 81, 68, 141, 6, 18,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target2]")
+            );
+        }
+
+        @Test void shouldNotFailOnMethodInvocationOnField() {
+            compile(
+                packageInfo("source", "java.util"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import java.util.List;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private List<String> names;\n" +
+                    "\n" +
+                    "    private String foo() { return names.get(0); }\n" +
+                    "}\n"));
+
+            expect();
+        }
+
         @Test void shouldReportErrorAboutForbiddenMethodInvocationWithArgument() {
             compile(
                 packageInfo("source", "target1"),
@@ -1453,4 +1790,1312 @@ class PackageDependenciesAnnotationProcessorTest extends AbstractAnnotationProce
             );
         }
     }
+
+    @Nested class PatternDependencies {
+        private StringJavaFileObject source(String targetPackage) {
+            return file("source/Source.java", "" +
+                "package source;\n" +
+                "\n" +
+                "import " + targetPackage + ".Target;\n" +
+                "\n" +
+                "public class Source {\n" +
+                "    private Target target;\n" +
+                "}\n");
+        }
+
+        private StringJavaFileObject target(String targetPackage) {
+            return file(targetPackage.replace('.', '/') + "/Target.java", "" +
+                "package " + targetPackage + ";\n" +
+                "\n" +
+                "public class Target {\n" +
+                "}\n");
+        }
+
+        @Test void shouldAllowDependencyMatchingSingleSegmentPattern() {
+            compile(
+                packageInfo("source", "target.*"),
+                source("target.sub"),
+                packageInfo("target.sub"),
+                target("target.sub"));
+
+            expect();
+        }
+
+        @Test void shouldReportErrorForDependencyOnDeeperPackageThanSingleSegmentPattern() {
+            compile(
+                packageInfo("source", "target.*"),
+                source("target.sub.deep"),
+                packageInfo("target.sub.deep"),
+                target("target.sub.deep"));
+
+            expect(
+                error("/source/Source.java", 90, 75, 97, 6, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target.sub.deep]"),
+                warning("/source/package-info.java", 0, 0, 96, 1, 1,
+                    "compiler.warn.proc.messager", "Unused dependency on [target.*]")
+            );
+        }
+
+        @Test void shouldAllowDependenciesMatchingMultiSegmentPattern() {
+            compile(
+                packageInfo("source", "target.**"),
+                source("target"),
+                packageInfo("target"),
+                target("target"),
+                file("source/Other.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "public class Other {\n" +
+                    "    private target.sub.deep.Target target;\n" +
+                    "}\n"),
+                packageInfo("target.sub.deep"),
+                target("target.sub.deep"));
+
+            expect();
+        }
+
+        @Test void shouldAllowDependencyMatchingLeadingMultiSegmentPattern() {
+            compile(
+                packageInfo("source", "**.controller"),
+                source("app.sub.controller"),
+                packageInfo("app.sub.controller"),
+                target("app.sub.controller"));
+
+            expect();
+        }
+
+        @Test void shouldAllowDependencyMatchingInheritedPattern() {
+            compile(
+                packageInfo("source", "target.*"),
+                packageInfo("source.sub"),
+                file("source/sub/Source.java", "" +
+                    "package source.sub;\n" +
+                    "\n" +
+                    "import target.sub.Target;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Target target;\n" +
+                    "}\n"),
+                packageInfo("target.sub"),
+                target("target.sub"));
+
+            expect();
+        }
+
+        @Test void shouldReportErrorForPatternWithPartialSegment() {
+            compile(
+                packageInfo("source", "target.su*"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "}\n"));
+
+            expect(
+                error("/source/package-info.java", 0, 0, 98, 1, 1,
+                    "compiler.err.proc.messager", "Invalid @AllowDependenciesOn: unknown package [target.su*]")
+            );
+        }
+    }
+
+    @Nested class TransitiveDependencies {
+        private StringJavaFileObject boundary() {
+            return file("boundary/Boundary.java", "" +
+                "package boundary;\n" +
+                "\n" +
+                "import controller.Controller;\n" +
+                "\n" +
+                "public class Boundary {\n" +
+                "    private Controller controller;\n" +
+                "}\n");
+        }
+
+        private StringJavaFileObject controller() {
+            return file("controller/Controller.java", "" +
+                "package controller;\n" +
+                "\n" +
+                "import persistence.Persistence;\n" +
+                "\n" +
+                "public class Controller {\n" +
+                "    private Persistence persistence;\n" +
+                "}\n");
+        }
+
+        private StringJavaFileObject persistence() {
+            return file("persistence/Persistence.java", "" +
+                "package persistence;\n" +
+                "\n" +
+                "public class Persistence {\n" +
+                "}\n");
+        }
+
+        @Test void shouldReportErrorForForbiddenTransitiveDependency() {
+            compile(
+                file("boundary/package-info.java", "" +
+                    "@AllowDependenciesOn(\"controller\")\n" +
+                    "@ForbidTransitiveDependenciesOn(\"persistence\")\n" +
+                    "package boundary;\n" +
+                    "\n" +
+                    "import com.github.t1.pdap.AllowDependenciesOn;\n" +
+                    "import com.github.t1.pdap.ForbidTransitiveDependenciesOn;\n"),
+                boundary(),
+                packageInfo("controller", "persistence"),
+                controller(),
+                packageInfo("persistence"),
+                persistence());
+
+            expect(
+                error("/boundary/Boundary.java", 97, 78, 108, 6, 24, "compiler.err.proc.messager",
+                    "Forbidden transitive dependency on [persistence] via boundary -> controller -> persistence")
+            );
+        }
+
+        @Test void shouldReportErrorForInheritedForbiddenTransitiveDependency() {
+            compile(
+                file("boundary/package-info.java", "" +
+                    "@ForbidTransitiveDependenciesOn(\"persistence\")\n" +
+                    "package boundary;\n" +
+                    "\n" +
+                    "import com.github.t1.pdap.ForbidTransitiveDependenciesOn;\n"),
+                packageInfo("boundary.rest", "controller"),
+                file("boundary/rest/Rest.java", "" +
+                    "package boundary.rest;\n" +
+                    "\n" +
+                    "import controller.Controller;\n" +
+                    "\n" +
+                    "public class Rest {\n" +
+                    "    private Controller controller;\n" +
+                    "}\n"),
+                packageInfo("controller", "persistence"),
+                controller(),
+                packageInfo("persistence"),
+                persistence());
+
+            expect(
+                error("/boundary/rest/Rest.java", 98, 79, 109, 6, 24, "compiler.err.proc.messager",
+                    "Forbidden transitive dependency on [persistence] via boundary.rest -> controller -> persistence")
+            );
+        }
+
+        @Test void shouldNotReportTransitiveDependencyThatIsNotReached() {
+            compile(
+                file("boundary/package-info.java", "" +
+                    "@AllowDependenciesOn(\"controller\")\n" +
+                    "@ForbidTransitiveDependenciesOn(\"persistence\")\n" +
+                    "package boundary;\n" +
+                    "\n" +
+                    "import com.github.t1.pdap.AllowDependenciesOn;\n" +
+                    "import com.github.t1.pdap.ForbidTransitiveDependenciesOn;\n"),
+                boundary(),
+                packageInfo("controller"),
+                file("controller/Controller.java", "" +
+                    "package controller;\n" +
+                    "\n" +
+                    "public class Controller {\n" +
+                    "}\n"),
+                packageInfo("persistence"),
+                persistence());
+
+            expect();
+        }
+    }
+
+    @Nested class PluginMode {
+        @BeforeEach void runAsPlugin() { plugin = true; }
+
+        @Test void shouldSimplyCompile() {
+            compile(file("Simple.java", "" +
+                "public class Simple {\n" +
+                "}"));
+
+            expect();
+        }
+
+        @Test void shouldReportErrorAboutForbiddenIndirectDependency() {
+            compile(
+                packageInfo("source", "target1"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target1.Target1;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private void foo() { Object target2 = new Target1().target2(); }\n" +
+                    "}\n"),
+
+                packageInfo("target1", "target2"),
+                file("target1/Target1.java", "" +
+                    "package target1;\n" +
+                    "\n" +
+                    "import target2.Target2;\n" +
+                    "\n" +
+                    "public class Target1 {\n" +
+                    "    public Target2 target2() { return null; }\n" +
+                    "}\n"),
+
+                packageInfo("target2"),
+                file("target2/Target2.java", "" +
+                    "package target2;\n" +
+                    "\n" +
+                    "public class Target2 {\n" +
+                    "}\n"));
+
+            expect(
+                error("/source/Source.java", 81, 68, 132, 6, 18,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target2]")
+            );
+        }
+
+        @Test void shouldReportAfterImplicitlyCompiledTypes() throws IOException {
+            Path sourcePath = tempDirectory("pdap-sources");
+            Files.createDirectories(sourcePath.resolve("target"));
+            Files.write(sourcePath.resolve("target/package-info.java"), ("" +
+                "@AllowDependenciesOn()\n" +
+                "package target;\n" +
+                "\n" +
+                "import com.github.t1.pdap.AllowDependenciesOn;\n").getBytes(UTF_8));
+            Files.write(sourcePath.resolve("target/Target.java"), ("" +
+                "package target;\n" +
+                "\n" +
+                "public class Target {\n" +
+                "    private java.util.List<String> list;\n" +
+                "}\n").getBytes(UTF_8));
+            extraOptions.addAll(asList("-sourcepath", sourcePath.toString()));
+
+            compile(
+                packageInfo("source", "target"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    Object target() { return new target.Target(); } // found only while analyzing\n" +
+                    "}\n"));
+
+            expect(
+                error(sourcePath.resolve("target/Target.java").toString(), 74, 43, 79, 4, 36,
+                    "compiler.err.proc.messager", "Forbidden dependency on [java.util]")
+            );
+        }
+
+        @Test void shouldReportErrorAboutForbiddenLambdaParameterType() {
+            compile(
+                packageInfo("source", "target1", "java.util.function"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target1.Target1;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private void foo() { Target1.each(target2 -> target2.run()); }\n" +
+                    "}\n"),
+
+                packageInfo("target1", "target2", "java.util.function"),
+                file("target1/Target1.java", "" +
+                    "package target1;\n" +
+                    "\n" +
+                    "import target2.Target2;\n" +
+                    "\n" +
+                    "import java.util.function.Consumer;\n" +
+                    "\n" +
+                    "public class Target1 {\n" +
+                    "    public static void each(Consumer<Target2> consumer) {}\n" +
+                    "}\n"),
+
+                packageInfo("target2"),
+                file("target2/Target2.java", "" +
+                    "package target2;\n" +
+                    "\n" +
+                    "public class Target2 {\n" +
+                    "    public void run() {}\n" +
+                    "}\n"));
+
+            expect(
+                error("/source/Source.java", 81, 68, 130, 6, 18,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target2]")
+            );
+        }
+    }
+
+    @Nested class WrappedProcessingEnvironment {
+        @BeforeEach void wrap() { wrapped = true; }
+
+        @Test void shouldReportErrorWithoutPosition() {
+            compileForbiddenSource("" +
+                "package source;\n" +
+                "\n" +
+                "import target.Target;\n" +
+                "\n" +
+                "public class Source {\n" +
+                "    private Target target;\n" +
+                "}\n");
+
+            expect(
+                error("Forbidden dependency on [target]")
+            );
+        }
+
+        @Test void shouldReadRulesResourceInClassOutput() throws IOException {
+            withClassOutput();
+            Path resource = classOutput.resolve("META-INF/pdap.rules");
+            Files.createDirectories(resource.getParent());
+            Files.write(resource, ("" +
+                "allow source: target\n" +
+                "allow target:\n").getBytes(UTF_8));
+
+            compile(
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private target.Target target;\n" +
+                    "}\n"),
+                targetInterface());
+
+            expect();
+            // without the rules file, the processor would not even run
+            assertThat(classOutput.resolve(DependencyStore.RESOURCE)).hasContent("source.Source=target\ntarget.Target=");
+        }
+    }
+
+    @Nested class IncrementalCompilation {
+        @BeforeEach void createClassOutput() throws IOException { withClassOutput(); }
+
+        private StringJavaFileObject source1() {
+            return file("source/Source1.java", "" +
+                "package source;\n" +
+                "\n" +
+                "import target.Target;\n" +
+                "\n" +
+                "public class Source1 {\n" +
+                "    private Target target;\n" +
+                "}\n");
+        }
+
+        private StringJavaFileObject source2() {
+            return file("source/Source2.java", "" +
+                "package source;\n" +
+                "\n" +
+                "public class Source2 {\n" +
+                "}\n");
+        }
+
+        private void compileAll() {
+            compile(packageInfo("source", "target"), source1(), source2(), packageInfo("target"), targetClass());
+            expect();
+        }
+
+        @Test void shouldNotWarnAboutDependencyUsedOnlyByUnchangedType() {
+            compileAll();
+
+            compile(packageInfo("source", "target"), source2());
+
+            expect();
+        }
+
+        @Test void shouldWarnAboutDependencyUsedOnlyByRemovedType() throws IOException {
+            compileAll();
+            Files.delete(classOutput.resolve("source/Source1.class"));
+
+            compile(packageInfo("source", "target"), source2());
+
+            expect(
+                warning("/source/package-info.java", 0, 0, 94, 1, 1,
+                    "compiler.warn.proc.messager", "Unused dependency on [target]")
+            );
+        }
+
+        @Test void shouldReportErrorAboutForbiddenDependencyOfUnchangedType() {
+            compileAll();
+
+            compile(packageInfo("source"), source2());
+
+            expect(
+                error("Forbidden dependency on [target]")
+            );
+        }
+    }
+
+    @Nested class MultipleRounds {
+        @BeforeEach void createClassOutput() throws IOException { withClassOutput(); }
+
+        /** Generates a class in the source package that uses the target package, like, e.g., MapStruct does */
+        @SupportedAnnotationTypes("*")
+        class GeneratingProcessor extends AbstractProcessor {
+            private final String name;
+            private final String source;
+            private boolean generated = false;
+
+            GeneratingProcessor() {
+                this("source.Generated", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "public class Generated {\n" +
+                    "    private target.Target target;\n" +
+                    "}\n");
+            }
+
+            GeneratingProcessor(String name, String source) {
+                this.name = name;
+                this.source = source;
+            }
+
+            @Override public SourceVersion getSupportedSourceVersion() { return SourceVersion.latestSupported(); }
+
+            @Override public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+                if (!generated) {
+                    generated = true;
+                    try (Writer writer = processingEnv.getFiler().createSourceFile(name).openWriter()) {
+                        writer.write(source);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return false;
+            }
+        }
+
+        @Test void shouldNotWarnAboutDependencyUsedOnlyByGeneratedSource() {
+            extraProcessors.add(new GeneratingProcessor());
+
+            compileSource("" +
+                "package source;\n" +
+                "\n" +
+                "public class Source {\n" +
+                "}\n");
+
+            expect();
+        }
+
+        @Test void shouldReportErrorInGeneratedSource() {
+            extraProcessors.add(new GeneratingProcessor());
+
+            compile(
+                packageInfo("source"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "}\n"),
+                packageInfo("target"),
+                targetClass());
+
+            expect(
+                error(classOutput.resolve("source/Generated.java").toString(), 68, 46, 75, 4, 27,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]")
+            );
+        }
+
+        @Test void shouldReadRulesOnlyOnceWhenSuperPackagesDontExist() {
+            List<String> lookups = new ArrayList<>();
+            PackageRules rules = new PackageRules(new PackageRules.Lookup() {
+                @Override public boolean exists(String packageName) {
+                    lookups.add("exists " + packageName);
+                    return packageName.endsWith(".source") || packageName.endsWith(".target");
+                }
+
+                @Override public String[] annotation(String packageName, Class<? extends Annotation> type) {
+                    lookups.add(type.getSimpleName() + " " + packageName);
+                    return (type == AllowDependenciesOn.class && packageName.equals("com.acme.source")) ? new String[]{"com.acme.target"} : null;
+                }
+            }, new PackageTable(), Stats.DISABLED);
+
+            rules.setComplete(false);
+            assertThat(rules.get("com.acme.source").isChecked()).isTrue();
+            rules.setComplete(true);
+            assertThat(rules.get("com.acme.source").invalid()).isEmpty();
+
+            assertThat(lookups).containsExactlyInAnyOrder(
+                "exists com",
+                "exists com.acme",
+                "exists com.acme.source",
+                "AllowDependenciesOn com.acme.source",
+                "exists com.acme.target",
+                "ForbidTransitiveDependenciesOn com.acme.source");
+        }
+
+        @Test void shouldAllowDependencyOnPackageGeneratedInLaterRound() {
+            extraProcessors.add(new GeneratingProcessor("target.Target", "" +
+                "package target;\n" +
+                "\n" +
+                "public class Target {\n" +
+                "}\n"));
+
+            compile(
+                packageInfo("source", "target"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private target.Target target;\n" +
+                    "}\n"));
+
+            expect(
+                warning("no @AllowDependenciesOn annotation")
+            );
+        }
+    }
+
+    @Nested class StatsTests {
+        @BeforeEach void createClassOutput() throws IOException { withClassOutput(); }
+
+        @Test void shouldWriteStatsAsJson() throws IOException {
+            extraOptions.add("-Apdap.stats=json");
+
+            compileSource("" +
+                "package source;\n" +
+                "\n" +
+                "import target.Target;\n" +
+                "\n" +
+                "public class Source {\n" +
+                "    private Target target;\n" +
+                "}\n");
+
+            expect();
+            String json = new String(Files.readAllBytes(classOutput.resolve("META-INF/pdap/stats.json")), UTF_8);
+            assertThat(json)
+                .contains("\"compilationUnits\": 2,")
+                .contains("\"types\": 2,")
+                .contains("\"packages\": 2,")
+                .contains("\"edges\": 1,")
+                .contains("\"rules\": 2,")
+                .contains("\"locations\": 1\n")
+                .contains("\"collect\": {\"wallNanos\": ");
+        }
+    }
+
+    @Nested class GraphExportTests {
+        @BeforeEach void createClassOutput() throws IOException { withClassOutput(); }
+
+        private void compileWithGraph(String formats) {
+            extraOptions.add("-Apdap.graph=" + formats);
+
+            compile(
+                packageInfo("source", "target", "other"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Target target;\n" +
+                    "}\n"),
+                packageInfo("target"),
+                targetClass(),
+                packageInfo("other"),
+                file("other/Other.java", "package other; public class Other {}"));
+        }
+
+        private String read(String extension) throws IOException {
+            return new String(Files.readAllBytes(classOutput.resolve("META-INF/pdap/dependencies." + extension)), UTF_8);
+        }
+
+        @Test void shouldWriteDot() throws IOException {
+            compileWithGraph("dot");
+
+            expect(
+                warning("/source/package-info.java", 0, 0, 105, 1, 1, "compiler.warn.proc.messager", "Unused dependency on [other]")
+            );
+            assertThat(read("dot")).isEqualTo("" +
+                "digraph dependencies {\n" +
+                "    \"source\";\n" +
+                "    \"target\";\n" +
+                "    \"other\";\n" +
+                "    \"source\" -> \"target\" [type=primary, used=true];\n" +
+                "    \"source\" -> \"other\" [type=primary, used=false, style=dashed];\n" +
+                "}\n");
+        }
+
+        @Test void shouldWriteJsonAndGraphMl() throws IOException {
+            compileWithGraph("json,graphml");
+
+            expect(
+                warning("/source/package-info.java", 0, 0, 105, 1, 1, "compiler.warn.proc.messager", "Unused dependency on [other]")
+            );
+            assertThat(read("json")).isEqualTo("" +
+                "{\n" +
+                "  \"nodes\": [\n" +
+                "    \"source\",\n" +
+                "    \"target\",\n" +
+                "    \"other\"\n" +
+                "  ],\n" +
+                "  \"edges\": [\n" +
+                "    {\"source\": \"source\", \"target\": \"target\", \"type\": \"primary\", \"used\": true},\n" +
+                "    {\"source\": \"source\", \"target\": \"other\", \"type\": \"primary\", \"used\": false}\n" +
+                "  ]\n" +
+                "}\n");
+            assertThat(read("graphml"))
+                .contains("<node id=\"other\"/>")
+                .contains("<edge source=\"source\" target=\"target\"><data key=\"type\">primary</data><data key=\"used\">true</data></edge>");
+            assertThat(classOutput.resolve("META-INF/pdap/dependencies.dot")).doesNotExist();
+        }
+
+        @Test void shouldReportUnknownFormat() {
+            compileWithGraph("svg");
+
+            expect(
+                error("unknown pdap.graph format [svg]"),
+                warning("/source/package-info.java", 0, 0, 105, 1, 1, "compiler.warn.proc.messager", "Unused dependency on [other]")
+            );
+            assertThat(classOutput.resolve("META-INF/pdap/dependencies.dot")).doesNotExist();
+        }
+    }
+
+    @Nested class DecisionLogTests {
+        @Test void shouldLogDecisions() throws IOException {
+            Path log = Files.createTempFile("pdap", ".ndjson");
+            extraOptions.add("-Apdap.log=" + log);
+
+            compileForbiddenSource("" +
+                "package source;\n" +
+                "\n" +
+                "import target.Target;\n" +
+                "\n" +
+                "public class Source {\n" +
+                "    private Target target;\n" +
+                "}\n");
+
+            expect(
+                error("/source/Source.java", 81, 66, 88, 6, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]")
+            );
+            List<String> lines = Files.readAllLines(log, UTF_8);
+            Files.delete(log);
+            assertThat(lines).containsExactly(
+                "{\"source\":\"source\",\"target\":\"target\",\"type\":\"forbidden\",\"file\":\"/source/Source.java\",\"line\":6}");
+        }
+
+        @Test void shouldReportUnwritableLog() throws IOException {
+            Path file = Files.createFile(tempDirectory("pdap-log").resolve("file"));
+            Path log = file.resolve("pdap.ndjson");
+            extraOptions.add("-Apdap.log=" + log);
+
+            compileForbiddenSource("" +
+                "package source;\n" +
+                "\n" +
+                "import target.Target;\n" +
+                "\n" +
+                "public class Source {\n" +
+                "    private Target target;\n" +
+                "}\n");
+
+            expect(
+                error("can't open pdap.log file " + log + ": java.nio.file.FileAlreadyExistsException: " + file),
+                error("/source/Source.java", 81, 66, 88, 6, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]")
+            );
+        }
+    }
+
+    @Nested class FlightRecorderEvents {
+        @Test void shouldRecordEvents() throws IOException {
+            assumeTrue(FlightRecorder.isAvailable());
+            Path file = Files.createTempFile("pdap", ".jfr");
+            try (Recording recording = new Recording()) {
+                Stream.of("CompilationUnit", "PackageScan", "NameFallback", "Diagnostic")
+                    .forEach(name -> recording.enable("com.github.t1.pdap." + name));
+                recording.start();
+
+                compileForbiddenSource("" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Target target;\n" +
+                    "    private String string = String.valueOf(1);\n" +
+                    "}\n");
+
+                recording.stop();
+                recording.dump(file);
+            }
+
+            expect(
+                error("/source/Source.java", 81, 66, 88, 6, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]")
+            );
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            Files.delete(file);
+            assertThat(events.stream().map(this::toString)).contains(
+                "CompilationUnit /source/Source.java",
+                "CompilationUnit /target/Target.java",
+                "PackageScan source",
+                "PackageScan target",
+                "NameFallback String java.lang.String",
+                "Diagnostic ERROR Forbidden dependency on [target]");
+        }
+
+        private String toString(RecordedEvent event) {
+            String name = event.getEventType().getName().substring("com.github.t1.pdap.".length());
+            return name + event.getFields().stream()
+                .filter(field -> !asList("startTime", "duration", "eventThread", "stackTrace", "location").contains(field.getName()))
+                .map(field -> " " + event.getValue(field.getName()))
+                .collect(joining());
+        }
+    }
+
+    @Nested class AnalysisCacheTests {
+        private Path cacheDir;
+
+        @BeforeEach void createCacheDir() throws IOException {
+            cacheDir = tempDirectory("pdap-cache");
+            extraOptions.add("-Apdap.cacheDir=" + cacheDir);
+        }
+
+        private long entries() throws IOException {
+            try (Stream<Path> files = Files.list(cacheDir)) {
+                return files.count();
+            }
+        }
+
+        private String stats() throws IOException {
+            return new String(Files.readAllBytes(classOutput.resolve("META-INF/pdap/stats.json")), UTF_8);
+        }
+
+        private void compileForbiddenField() {
+            compileForbiddenSource("" +
+                "package source;\n" +
+                "\n" +
+                "import target.Target;\n" +
+                "\n" +
+                "public class Source {\n" +
+                "    private Target target;\n" +
+                "}\n");
+        }
+
+        @Test void shouldReportSameErrorFromCache() throws IOException {
+            withClassOutput();
+            extraOptions.add("-Apdap.stats=json");
+            compileForbiddenField();
+            expect(
+                error("/source/Source.java", 81, 66, 88, 6, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]")
+            );
+            assertThat(entries()).isEqualTo(2);
+            assertThat(stats()).contains("\"analysisCacheHit\": 0\n");
+
+            compileForbiddenField();
+
+            expect(
+                error("/source/Source.java", 81, 66, 88, 6, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]")
+            );
+            assertThat(entries()).isEqualTo(2);
+            assertThat(stats()).contains("\"analysisCacheHit\": 2\n");
+        }
+
+        @Test void shouldUseCacheWhenClassOutputIsOnClassPath() throws IOException {
+            withClassOutput();
+            extraOptions.add("-Apdap.stats=json");
+            for (int i = 0; i < 2; i++) {
+                compileSource("" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Target target;\n" +
+                    "}\n");
+                expect();
+            }
+
+            assertThat(Files.exists(classOutput.resolve("source/Source.class"))).isTrue();
+            assertThat(stats()).contains("\"analysisCacheHit\": 2\n");
+        }
+
+        @Test void shouldReportSameExtraImportFromCache() {
+            for (int i = 0; i < 2; i++) {
+                compileSource("" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source{\n" +
+                    "}\n");
+
+                expect(
+                    warning("/source/Source.java", 47, 40, 62, 5, 8,
+                        "compiler.warn.proc.messager", "Import [target] not found as dependency"),
+                    warning("/source/package-info.java", 0, 0, 94, 1, 1,
+                        "compiler.warn.proc.messager", "Unused dependency on [target]")
+                );
+            }
+        }
+
+        @Test void shouldNotUseCacheWhenAnySourceChanged() throws IOException {
+            compileForbiddenField();
+            expect(error("/source/Source.java", 81, 66, 88, 6, 20,
+                "compiler.err.proc.messager", "Forbidden dependency on [target]"));
+
+            compileForbiddenSource("" +
+                "package source;\n" +
+                "\n" +
+                "public class Source {\n" +
+                "}\n");
+
+            expect();
+            assertThat(entries()).isEqualTo(4);
+        }
+
+        @Test void shouldIgnoreCorruptEntries() throws IOException {
+            withClassOutput();
+            extraOptions.add("-Apdap.stats=json");
+            compileForbiddenField();
+            expect(error("/source/Source.java", 81, 66, 88, 6, 20,
+                "compiler.err.proc.messager", "Forbidden dependency on [target]"));
+            try (Stream<Path> files = Files.list(cacheDir)) {
+                for (Path entry : files.collect(toList()))
+                    Files.write(entry, ByteBuffer.allocate(16).putInt(0x70646170).putInt(1).putInt(1).putInt(Integer.MAX_VALUE).array());
+            }
+
+            compileForbiddenField();
+
+            expect(error("/source/Source.java", 81, 66, 88, 6, 20,
+                "compiler.err.proc.messager", "Forbidden dependency on [target]"));
+            assertThat(stats()).contains("\"analysisCacheHit\": 0\n");
+        }
+
+        @Test void shouldReportInvalidCacheSize() {
+            extraOptions.add("-Apdap.cacheSize=lots");
+
+            compileForbiddenField();
+
+            expect(
+                error("invalid pdap.cacheSize [lots]: expected the maximum number of megabytes"),
+                error("/source/Source.java", 81, 66, 88, 6, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]")
+            );
+        }
+
+        @Test void shouldEvictWhenFull() throws IOException {
+            extraOptions.add("-Apdap.cacheSize=0");
+
+            compileForbiddenField();
+
+            expect(error("/source/Source.java", 81, 66, 88, 6, 20,
+                "compiler.err.proc.messager", "Forbidden dependency on [target]"));
+            assertThat(entries()).isEqualTo(0);
+        }
+    }
+
+    @Nested class RulesFileTests {
+        private Path rules;
+
+        @BeforeEach void createRulesFile() throws IOException {
+            rules = tempDirectory("pdap-rules").resolve("pdap.rules");
+            extraOptions.add("-Apdap.rules=" + rules);
+        }
+
+        private void compileSourceWithRules(String rulesFile) throws IOException {
+            Files.write(rules, rulesFile.getBytes(UTF_8));
+            compile(
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Target target;\n" +
+                    "}\n"),
+                targetInterface());
+        }
+
+        @Test void shouldAcceptAllowedDependency() throws IOException {
+            compileSourceWithRules("" +
+                "# the rules of all packages\n" +
+                "allow source: target\n" +
+                "allow target:\n");
+
+            expect();
+        }
+
+        @Test void shouldReportForbiddenDependency() throws IOException {
+            compileSourceWithRules("" +
+                "allow source:\n" +
+                "allow target:\n");
+
+            expect(
+                error("/source/Source.java", 81, 66, 88, 6, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]")
+            );
+        }
+
+        @Test void shouldAcceptDependencyAllowedForPackagePattern() throws IOException {
+            Files.write(rules, ("" +
+                "allow **.boundary: target\n" +
+                "allow target:\n").getBytes(UTF_8));
+
+            compile(
+                file("app/boundary/Boundary.java", "" +
+                    "package app.boundary;\n" +
+                    "\n" +
+                    "public class Boundary {\n" +
+                    "    private target.Target target;\n" +
+                    "}\n"),
+                targetInterface());
+
+            expect();
+        }
+
+        @Test void shouldPreferRulesOverAnnotation() throws IOException {
+            Files.write(rules, ("" +
+                "allow source:\n").getBytes(UTF_8));
+
+            compile(
+                packageInfo("source", "target"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private target.Target target;\n" +
+                    "}\n"),
+                packageInfo("target"),
+                targetInterface());
+
+            expect(
+                error("/source/Source.java", 65, 43, 72, 4, 27,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]")
+            );
+        }
+
+        @Test void shouldUseAnnotationOfPackageWithoutRules() throws IOException {
+            Files.write(rules, ("" +
+                "allow target:\n").getBytes(UTF_8));
+
+            compile(
+                packageInfo("source", "target"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private target.Target target;\n" +
+                    "}\n"),
+                targetInterface());
+
+            expect();
+        }
+
+        @Test void shouldReportUnknownTargetAtRule() throws IOException {
+            compileSourceWithRules("" +
+                "allow source: target, undefined\n" +
+                "allow target:\n");
+
+            expect(
+                error(rules.toString(), 0, 0, 31, 1, 1,
+                    "compiler.err.proc.messager", "Invalid @AllowDependenciesOn: unknown package [undefined]")
+            );
+        }
+
+        @Test void shouldReportInvalidRule() throws IOException {
+            compileSourceWithRules("" +
+                "allow source: target\n" +
+                "allow target:\n" +
+                "permit target: source\n");
+
+            expect(
+                error(rules.toString(), 35, 35, 56, 3, 1,
+                    "compiler.err.proc.messager", "expected `allow` or `forbid`, but found `permit`")
+            );
+        }
+
+        @Test void shouldReportForbiddenTransitiveDependency() throws IOException {
+            Files.write(rules, ("" +
+                "allow boundary: controller\n" +
+                "forbid boundary: persistence\n" +
+                "allow controller: persistence\n" +
+                "allow persistence:\n").getBytes(UTF_8));
+
+            compile(
+                file("boundary/Boundary.java", "" +
+                    "package boundary;\n" +
+                    "\n" +
+                    "public class Boundary {\n" +
+                    "    private controller.Controller controller;\n" +
+                    "}\n"),
+                file("controller/Controller.java", "" +
+                    "package controller;\n" +
+                    "\n" +
+                    "public class Controller {\n" +
+                    "    private persistence.Persistence persistence;\n" +
+                    "}\n"),
+                file("persistence/Persistence.java", "" +
+                    "package persistence;\n" +
+                    "\n" +
+                    "public class Persistence {\n" +
+                    "}\n"));
+
+            expect(
+                error("/boundary/Boundary.java", 77, 47, 88, 4, 35,
+                    "compiler.err.proc.messager", "Forbidden transitive dependency on [persistence] via boundary -> controller -> persistence")
+            );
+        }
+
+        @Test void shouldReadRulesResourceInClassOutput() throws IOException {
+            extraOptions.clear(); // not the option
+            withClassOutput();
+            Path resource = classOutput.resolve("META-INF/pdap.rules");
+            Files.createDirectories(resource.getParent());
+            Files.write(resource, ("" +
+                "allow source:\n" +
+                "allow target:\n").getBytes(UTF_8));
+
+            compileSourceWithRules("");
+
+            expect(
+                error("/source/Source.java", 81, 66, 88, 6, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]")
+            );
+        }
+
+        @Test void shouldReportForbiddenDependencyAsPlugin() throws IOException {
+            plugin = true;
+
+            compileSourceWithRules("" +
+                "allow source:\n" +
+                "allow target:\n");
+
+            expect(
+                error("/source/Source.java", 81, 66, 88, 6, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]")
+            );
+        }
+    }
+
+    @Nested class BytecodeCheckerTests {
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        private int errors;
+
+        @BeforeEach void createClassOutput() throws IOException {
+            withClassOutput();
+            extraOptions.add("-proc:none"); // the checker should find the errors, not the processor
+        }
+
+        private List<String> check(Path path) {
+            errors = new BytecodeChecker(new PrintStream(output, true)).check(singletonList(path));
+            return asList(new String(output.toByteArray(), UTF_8).split("\\R", -1)).stream()
+                .filter(line -> !line.isEmpty()).collect(toList());
+        }
+
+        private Path jar() throws IOException {
+            Path jar = classOutput.resolve("classes.jar");
+            try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar));
+                 Stream<Path> files = Files.walk(classOutput)) {
+                for (Path file : files.filter(file -> file.toString().endsWith(".class")).collect(toList())) {
+                    out.putNextEntry(new JarEntry(classOutput.relativize(file).toString().replace(File.separatorChar, '/')));
+                    out.write(Files.readAllBytes(file));
+                    out.closeEntry();
+                }
+            }
+            return jar;
+        }
+
+        @Test void shouldReportForbiddenDependencyInClassDirectory() {
+            compileForbiddenSource("" +
+                "package source;\n" +
+                "\n" +
+                "import target.Target;\n" +
+                "\n" +
+                "public class Source {\n" +
+                "    private Target target;\n" +
+                "}\n");
+
+            expect();
+            assertThat(check(classOutput)).containsExactly(
+                classOutput.resolve("source/Source.class") + ": error: Forbidden dependency on [target]");
+            assertThat(errors).isEqualTo(1);
+        }
+
+        @Test void shouldAcceptAllowedDependencyInJar() throws IOException {
+            compileSource("" +
+                "package source;\n" +
+                "\n" +
+                "import target.Target;\n" +
+                "\n" +
+                "public class Source {\n" +
+                "    private Target target;\n" +
+                "\n" +
+                "    void run() {\n" +
+                "        Runnable runnable = () -> target.toString().trim();\n" +
+                "        runnable.run();\n" +
+                "    }\n" +
+                "}\n");
+
+            expect();
+            assertThat(check(jar())).isEmpty();
+            assertThat(errors).isEqualTo(0);
+        }
+
+        @Test void shouldWarnAboutUnusedDependencyAtPackageInfo() {
+            compileSource("" +
+                "package source;\n" +
+                "\n" +
+                "public class Source {\n" +
+                "}\n");
+
+            expect();
+            assertThat(check(classOutput)).containsExactly(
+                classOutput.resolve("source/package-info.class") + ": warning: Unused dependency on [target]");
+            assertThat(errors).isEqualTo(0);
+        }
+
+        @Test void shouldWarnAboutUnusedDependencyOnPackageNotChecked() throws IOException {
+            compileSource("" +
+                "package source;\n" +
+                "\n" +
+                "public class Source {\n" +
+                "}\n");
+            Path library = classOutput.resolve("target"); // e.g. in a jar on the class path, that we don't check
+            Files.delete(library.resolve("Target.class"));
+            Files.delete(library.resolve("package-info.class"));
+
+            expect();
+            assertThat(check(classOutput)).containsExactly(
+                classOutput.resolve("source/package-info.class") + ": warning: Unused dependency on [target]");
+            assertThat(errors).isEqualTo(0);
+        }
+
+        @Test void shouldReportForbiddenTransitiveDependency() {
+            compile(
+                file("boundary/package-info.java", "" +
+                    "@AllowDependenciesOn(\"controller\")\n" +
+                    "@ForbidTransitiveDependenciesOn(\"persistence\")\n" +
+                    "package boundary;\n" +
+                    "\n" +
+                    "import com.github.t1.pdap.AllowDependenciesOn;\n" +
+                    "import com.github.t1.pdap.ForbidTransitiveDependenciesOn;\n"),
+                file("boundary/Boundary.java", "" +
+                    "package boundary;\n" +
+                    "\n" +
+                    "public class Boundary {\n" +
+                    "    private controller.Controller controller;\n" +
+                    "}\n"),
+                packageInfo("controller", "persistence"),
+                file("controller/Controller.java", "" +
+                    "package controller;\n" +
+                    "\n" +
+                    "public class Controller {\n" +
+                    "    Object find() { return persistence.Persistence.find(); }\n" +
+                    "}\n"),
+                packageInfo("persistence"),
+                file("persistence/Persistence.java", "" +
+                    "package persistence;\n" +
+                    "\n" +
+                    "public class Persistence {\n" +
+                    "    public static Object find() { return null; }\n" +
+                    "}\n"));
+
+            expect();
+            assertThat(check(classOutput)).containsExactly(
+                classOutput.resolve("boundary/Boundary.class") + ": error: Forbidden transitive dependency on [persistence] "
+                    + "via boundary -> controller -> persistence");
+            assertThat(errors).isEqualTo(1);
+        }
+
+        @Test void shouldReadRulesFileInClassDirectory() throws IOException {
+            compileSource("" +
+                "package source;\n" +
+                "\n" +
+                "import target.Target;\n" +
+                "\n" +
+                "public class Source {\n" +
+                "    private Target target;\n" +
+                "}\n");
+            Path rules = classOutput.resolve("META-INF/pdap.rules");
+            Files.createDirectories(rules.getParent());
+            Files.write(rules, ("" +
+                "allow source: target\n" +
+                "forbid source: target\n").getBytes(UTF_8));
+
+            expect();
+            assertThat(check(classOutput)).containsExactly(
+                classOutput.resolve("source/Source.class") + ": error: Forbidden transitive dependency on [target] via source -> target");
+            assertThat(errors).isEqualTo(1);
+        }
+    }
+
+    @Nested class Allocations {
+        private static final int SMALL = 10, LARGE = 110, RUNS = 200;
+
+        /** Collects the dependencies of two sources that differ only in the number of members, and measures the garbage */
+        @SupportedAnnotationTypes("*")
+        class MeasuringProcessor extends AbstractProcessor {
+            private final ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+            private long small;
+            private long large;
+
+            @Override public SourceVersion getSupportedSourceVersion() { return SourceVersion.latestSupported(); }
+
+            @Override public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+                if (large == 0) {
+                    Symbols symbols = new Symbols(processingEnv.getElementUtils(), processingEnv.getTypeUtils(), Stats.DISABLED);
+                    JCCompilationUnit smallSource = symbols.compilationUnit(processingEnv.getElementUtils().getTypeElement("source.Small"));
+                    JCCompilationUnit largeSource = symbols.compilationUnit(processingEnv.getElementUtils().getTypeElement("source.Large"));
+                    allocated(symbols, smallSource); // warm up
+                    allocated(symbols, largeSource);
+                    small = allocated(symbols, smallSource);
+                    large = allocated(symbols, largeSource);
+                }
+                return false;
+            }
+
+            /** The bytes allocated per collection */
+            private long allocated(Symbols symbols, JCCompilationUnit source) {
+                long threadId = Thread.currentThread().getId();
+                long before = threads.getThreadAllocatedBytes(threadId);
+                for (int i = 0; i < RUNS; i++)
+                    new DependenciesCollector(symbols, source);
+                return (threads.getThreadAllocatedBytes(threadId) - before) / RUNS;
+            }
+
+            long perMember() { return (large - small) / (LARGE - SMALL); }
+        }
+
+        private StringJavaFileObject source(String name, int members) {
+            StringBuilder source = new StringBuilder("" +
+                "package source;\n" +
+                "\n" +
+                "import target.Generic;\n" +
+                "import target.Target;\n" +
+                "\n" +
+                "public class " + name + " {\n");
+            for (int i = 0; i < members; i++)
+                source.append("" +
+                    "    private Target target" + i + ";\n" +
+                    "    private Target.Nested nested" + i + ";\n" +
+                    "    private Generic<? extends Target> generic" + i + ";\n" +
+                    "    Target method" + i + "(Target target) { Target.create(); new Target().foo(\"x\"); return new Target(); }\n");
+            return file("source/" + name + ".java", source.append("}\n").toString());
+        }
+
+        @Test void shouldAllocateNextToNothingPerMember() {
+            assumeTrue(ManagementFactory.getThreadMXBean() instanceof ThreadMXBean);
+            MeasuringProcessor processor = new MeasuringProcessor();
+            extraProcessors.add(processor);
+
+            compile(
+                packageInfo("source", "target"),
+                source("Small", SMALL),
+                source("Large", LARGE),
+
+                packageInfo("target"),
+                file("target/Target.java", "" +
+                    "package target;\n" +
+                    "\n" +
+                    "public class Target {\n" +
+                    "    public static Target create() { return new Target(); }\n" +
+                    "\n" +
+                    "    public String foo(int i) { return null; }\n" +
+                    "\n" +
+                    "    public String foo(String s) { return null; }\n" +
+                    "\n" +
+                    "    public static class Nested {}\n" +
+                    "}\n"),
+                file("target/Generic.java", "" +
+                    "package target;\n" +
+                    "\n" +
+                    "public class Generic<T> {}\n"));
+
+            expect();
+            assertThat(processor.perMember()).describedAs("bytes per member").isLessThan(16);
+        }
+    }
 }
@@ -0,0 +1,58 @@
+package com.github.t1.pdap;
+
+import javax.annotation.processing.Completion;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/** Passes a processing environment that is not javac's own to the processor, like Gradle does for incremental processors */
+class WrappingProcessor implements Processor {
+    private final Processor processor;
+
+    WrappingProcessor(Processor processor) { this.processor = processor; }
+
+    @Override public Set<String> getSupportedOptions() { return processor.getSupportedOptions(); }
+
+    @Override public Set<String> getSupportedAnnotationTypes() { return processor.getSupportedAnnotationTypes(); }
+
+    @Override public SourceVersion getSupportedSourceVersion() { return processor.getSupportedSourceVersion(); }
+
+    @Override public void init(ProcessingEnvironment processingEnv) {
+        processor.init(new ProcessingEnvironment() {
+            @Override public Map<String, String> getOptions() { return processingEnv.getOptions(); }
+
+            @Override public Messager getMessager() { return processingEnv.getMessager(); }
+
+            @Override public Filer getFiler() { return processingEnv.getFiler(); }
+
+            @Override public Elements getElementUtils() { return processingEnv.getElementUtils(); }
+
+            @Override public Types getTypeUtils() { return processingEnv.getTypeUtils(); }
+
+            @Override public SourceVersion getSourceVersion() { return processingEnv.getSourceVersion(); }
+
+            @Override public Locale getLocale() { return processingEnv.getLocale(); }
+        });
+    }
+
+    @Override public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        return processor.process(annotations, roundEnv);
+    }
+
+    @Override
+    public Iterable<? extends Completion> getCompletions(Element element, AnnotationMirror annotation, ExecutableElement member, String userText) {
+        return processor.getCompletions(element, annotation, member, userText);
+    }
+}